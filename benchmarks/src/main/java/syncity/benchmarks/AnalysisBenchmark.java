@@ -0,0 +1,82 @@
+package syncity.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import syncity.population.PersonAnalysis;
+import utils.BasicUtils;
+
+/**
+ * The analysis helpers: the home-work distance of every person and writing
+ * a statistics map
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int popSize;
+
+    private Path tempDir;
+    private Network network;
+    private Person[] persons;
+    private Map<Integer, Integer> map;
+
+    @Setup
+    public void createData() throws IOException {
+	tempDir = BenchmarkData.createTempDir();
+	network = BenchmarkData.createNetwork(100);
+	Population population = BenchmarkData.createPopulation(network,
+		popSize);
+	persons = population.getPersons().values().toArray(new Person[0]);
+	// as the distances histogram, a count per meter
+	map = new LinkedHashMap<>();
+	for (int i = 0; i < popSize; i++) {
+	    map.put(i, i % 100);
+	}
+    }
+
+    @TearDown
+    public void deleteFiles() throws IOException {
+	BenchmarkData.deleteTempDir(tempDir);
+    }
+
+    @Benchmark
+    public double getHomeWorkDistance() {
+	double total = 0;
+	for (Person person : persons) {
+	    total += PersonAnalysis.getHomeWorkDistance(person, network);
+	}
+	return total;
+    }
+
+    @Benchmark
+    public void writeSimpleMap() throws IOException {
+	BasicUtils.writeSimpleMap(map, tempDir.resolve("map.csv").toString(),
+		Arrays.asList("Distance", "Count"));
+    }
+}
@@ -0,0 +1,50 @@
+package syncity.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.network.GridNetworkGenerator;
+import syncity.population.RandomPopulationGenerator;
+import utils.ArtifactCache;
+import utils.RandomStreams;
+import utils.Structs.NetworkArguments;
+import utils.Structs.PopulationArguments;
+
+/**
+ * The inputs of the benchmarks, generated from the default seed so every
+ * run measures the same data
+ */
+class BenchmarkData {
+
+    static Network createNetwork(int gridSize) {
+	NetworkArguments params = new NetworkArguments();
+	params.numOfSt = gridSize;
+	params.numOfAv = gridSize;
+	GridNetworkGenerator grid = new GridNetworkGenerator(params);
+	grid.setSeed(RandomStreams.getSeed());
+	grid.generateGridNetwork(Runtime.getRuntime().availableProcessors());
+	return grid.getNetwork();
+    }
+
+    static Population createPopulation(Network network, int popSize) {
+	PopulationArguments params = new PopulationArguments();
+	params.popSize = popSize;
+	RandomPopulationGenerator popGen = new RandomPopulationGenerator(
+		network, params);
+	popGen.setSeed(RandomStreams.getSeed());
+	popGen.populateNodes(Runtime.getRuntime().availableProcessors());
+	return popGen.getPopulation();
+    }
+
+    static Path createTempDir() throws IOException {
+	return Files.createTempDirectory("syncity-benchmarks");
+    }
+
+    static void deleteTempDir(Path dir) throws IOException {
+	ArtifactCache.deleteDirectory(dir);
+    }
+}
@@ -0,0 +1,31 @@
+package syncity.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of the benchmarks jar, the usual JMH command line (e.g. a
+ * benchmarks regex, "-p popSize=10000" or "-f 3") but the results are written
+ * as json to "jmh-result.json" by default, for tracking regressions. "-rf"
+ * and "-rff" set another format and file.
+ */
+public class BenchmarksRunner {
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+	CommandLineOptions commandLine = new CommandLineOptions(args);
+	ChainedOptionsBuilder options = new OptionsBuilder()
+		.parent(commandLine);
+	if (!commandLine.getResultFormat().hasValue()) {
+	    options.resultFormat(ResultFormatType.JSON);
+	}
+	if (!commandLine.getResult().hasValue()) {
+	    options.result(DEFAULT_RESULT_FILE);
+	}
+	new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,69 @@
+package syncity.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.network.Network;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import syncity.network.GridNetworkGenerator;
+import utils.RandomStreams;
+import utils.Structs.NetworkArguments;
+
+/**
+ * {@link GridNetworkGenerator#generateGridNetwork(int)} across grid sizes
+ * and numbers of threads, against the sequential
+ * {@link GridNetworkGenerator#generateGridNetwork()} as the baseline
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NetworkGenerationBenchmark {
+
+    @Param({ "50", "100", "200" })
+    public int gridSize;
+
+    /*
+     * the threads of the parallel benchmark only, so the sequential one is
+     * not repeated for each number of threads
+     */
+    @State(Scope.Benchmark)
+    public static class Threads {
+	@Param({ "1", "4" })
+	public int numOfThreads;
+    }
+
+    @Benchmark
+    public Network generateGridNetwork(Threads threads) {
+	GridNetworkGenerator grid = createGenerator();
+	grid.generateGridNetwork(threads.numOfThreads);
+	return grid.getNetwork();
+    }
+
+    @Benchmark
+    public Network generateGridNetworkSequential() {
+	GridNetworkGenerator grid = createGenerator();
+	grid.generateGridNetwork();
+	return grid.getNetwork();
+    }
+
+    private GridNetworkGenerator createGenerator() {
+	NetworkArguments params = new NetworkArguments();
+	params.numOfSt = gridSize;
+	params.numOfAv = gridSize;
+	GridNetworkGenerator grid = new GridNetworkGenerator(params);
+	grid.setSeed(RandomStreams.getSeed());
+	return grid;
+    }
+}
@@ -0,0 +1,81 @@
+package syncity.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.population.Population;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import syncity.population.PopulationCSV;
+import syncity.population.PopulationCSVLoader;
+
+/**
+ * Reading and writing population csv files, the OpenCSV based methods of
+ * {@link PopulationCSV} next to the parallel loader and writer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PopulationCSVBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int popSize;
+
+    private Path tempDir;
+    private Population population;
+    private String csvFile;
+    private String outFile;
+
+    @Setup
+    public void createFiles() throws IOException {
+	tempDir = BenchmarkData.createTempDir();
+	population = BenchmarkData.createPopulation(
+		BenchmarkData.createNetwork(100), popSize);
+	csvFile = PopulationCSV.writePopulationCSV(population,
+		tempDir.resolve("population.csv").toString());
+	outFile = tempDir.resolve("out.csv").toString();
+    }
+
+    @TearDown
+    public void deleteFiles() throws IOException {
+	BenchmarkData.deleteTempDir(tempDir);
+    }
+
+    @Benchmark
+    public Population readPopulationCSV() throws IOException {
+	return PopulationCSV.readPopulationCSV(csvFile);
+    }
+
+    @Benchmark
+    public Population loadPopulationCSV() throws IOException {
+	return PopulationCSVLoader
+		.load(csvFile, Runtime.getRuntime().availableProcessors())
+		.population;
+    }
+
+    @Benchmark
+    public String writePopulationCSV() throws IOException {
+	return PopulationCSV.writePopulationCSV(population, outFile);
+    }
+
+    @Benchmark
+    public String writePopulationCSVParallel() throws IOException {
+	return PopulationCSV.writePopulationCSV(population, outFile,
+		Runtime.getRuntime().availableProcessors(), false);
+    }
+}
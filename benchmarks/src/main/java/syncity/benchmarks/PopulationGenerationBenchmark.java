@@ -0,0 +1,85 @@
+package syncity.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import syncity.population.RandomPopulationGenerator;
+import utils.RandomStreams;
+import utils.Structs.PopulationArguments;
+
+/**
+ * {@link RandomPopulationGenerator#populateNodes(int)} across population
+ * sizes, minimal home-work distances and numbers of threads, against the
+ * sequential {@link RandomPopulationGenerator#populateNodes()} as the
+ * baseline, on a 100x100 grid
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PopulationGenerationBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int popSize;
+
+    @Param({ "300", "2000" })
+    public int minHomeWorkDistance;
+
+    private Network network;
+    private RandomPopulationGenerator popGen;
+
+    @Setup(Level.Trial)
+    public void createNetwork() {
+	network = BenchmarkData.createNetwork(100);
+    }
+
+    /*
+     * a new generator for every call, populateNodes adds to the population
+     */
+    @Setup(Level.Invocation)
+    public void createGenerator() {
+	PopulationArguments params = new PopulationArguments();
+	params.popSize = popSize;
+	params.minHomeWorkDistance = minHomeWorkDistance;
+	popGen = new RandomPopulationGenerator(network, params);
+	popGen.setSeed(RandomStreams.getSeed());
+    }
+
+    /*
+     * the threads of the parallel benchmark only, so the sequential one is
+     * not repeated for each number of threads
+     */
+    @State(Scope.Benchmark)
+    public static class Threads {
+	@Param({ "1", "4" })
+	public int numOfThreads;
+    }
+
+    @Benchmark
+    public Population populateNodes(Threads threads) {
+	popGen.populateNodes(threads.numOfThreads);
+	return popGen.getPopulation();
+    }
+
+    @Benchmark
+    public Population populateNodesSequential() {
+	popGen.populateNodes();
+	return popGen.getPopulation();
+    }
+}
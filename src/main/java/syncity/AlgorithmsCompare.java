@@ -4,10 +4,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import syncity.experiments.ExperimentCell;
+import syncity.experiments.ExperimentScheduler;
 import syncity.network.GridNetworkGenerator;
 import syncity.population.RandomPopulationGenerator;
-import syncity.scenarios.BaseScenarioCreator;
-import syncity.scenarios.ScenarioFactory;
 import utils.Consts.AlgorithmsNames;
 import utils.Structs.NetworkArguments;
 import utils.Structs.PopulationArguments;
@@ -36,23 +36,18 @@ public class AlgorithmsCompare {
 	PopulationArguments popParameters = new PopulationArguments();
 	NetworkArguments networkParameters = new NetworkArguments();
 
-	GridNetworkGenerator grid = new GridNetworkGenerator(networkParameters);
-	grid.generateGridNetwork();
-	String net = grid.writeNetwork(workdir.toString());
-	RandomPopulationGenerator popGen = new RandomPopulationGenerator(
-		grid.getNetwork(), popParameters);
-	popGen.populateNodes();
-	String plansFile = popGen.writePopulation(workdir.toString());
-	
-	for (String algorithm : algorithms) {
-	    String scenarioPath = workdir.resolve(algorithm).toString();	    
-	    BaseScenarioCreator scenario = ScenarioFactory.getScenario(scenarioPath,
-		    algorithm, plansFile, net, iterations,
-		    (DispatcherArguments) dispatcherParameters.clone());
+	String net = GridNetworkGenerator.writeCachedNetwork(networkParameters,
+		workdir.toString());
+	String plansFile = RandomPopulationGenerator.writeCachedPopulation(net,
+		popParameters, workdir.toString());
 
-	    scenario.prepare();
-	    scenario.run();
+	ExperimentScheduler scheduler = ExperimentScheduler.forThisMachine();
+	for (String algorithm : algorithms) {
+	    scheduler.addCell(new ExperimentCell(algorithm, algorithm,
+		    workdir.resolve(algorithm), plansFile, net, iterations,
+		    (DispatcherArguments) dispatcherParameters.clone()));
 	}
+	scheduler.run(workdir);
     }
 
     public static void main(String[] args) throws Exception {
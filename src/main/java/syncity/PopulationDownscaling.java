@@ -4,10 +4,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import syncity.experiments.ExperimentCell;
+import syncity.experiments.ExperimentScheduler;
 import syncity.network.GridNetworkGenerator;
 import syncity.population.RandomPopulationGenerator;
-import syncity.scenarios.BaseScenarioCreator;
-import syncity.scenarios.ScenarioFactory;
 import utils.Consts.AlgorithmsNames;
 import utils.Structs.NetworkArguments;
 import utils.Structs.PopulationArguments;
@@ -37,24 +37,21 @@ public class PopulationDownscaling {
 	PopulationArguments popParameters = new PopulationArguments();
 	NetworkArguments networkParameters = new NetworkArguments();
 
-	GridNetworkGenerator grid = new GridNetworkGenerator(networkParameters);
-	grid.generateGridNetwork();
-	String net = grid.writeNetwork(workdir.toString());
-	RandomPopulationGenerator popGen = new RandomPopulationGenerator(
-		grid.getNetwork(), popParameters);
-	popGen.populateNodes();
-	
-	for (float sampleSize: kValues) {
-	    String plansFile = popGen.writePopulation(workdir.toString(), sampleSize);
-	    Path scenarioPath = workdir.resolve(algorithm+"-k"+sampleSize);
-	    Files.createDirectories(scenarioPath);
-	    BaseScenarioCreator scenario = ScenarioFactory.getScenario(scenarioPath.toString(),
-		    algorithm, plansFile, net, iterations,
-		    (DispatcherArguments) dispatcherParams.clone());
+	String net = GridNetworkGenerator.writeCachedNetwork(networkParameters,
+		workdir.toString());
+	String[] plansFiles = RandomPopulationGenerator
+		.writeCachedPopulationSamples(net, popParameters, kValues,
+			workdir.toString());
 
-	    scenario.prepare();
-	    scenario.run();
+	ExperimentScheduler scheduler = ExperimentScheduler.forThisMachine();
+	for (int i = 0; i < kValues.length; i++) {
+	    float sampleSize = kValues[i];
+	    String cellName = algorithm + "-k" + sampleSize;
+	    scheduler.addCell(new ExperimentCell(cellName, algorithm,
+		    workdir.resolve(cellName), plansFiles[i], net, iterations,
+		    (DispatcherArguments) dispatcherParams.clone()));
 	}
+	scheduler.run(workdir);
     }
 
     public static void main(String[] args) throws Exception {
@@ -1,7 +1,5 @@
 package syncity;
 
-import org.matsim.api.core.v01.population.Population;
-import org.matsim.api.core.v01.population.PopulationWriter;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 
@@ -30,8 +28,8 @@ public class RunReadyConfigWithPoplationCSV {
 	String populationCSVPath = dir + "/populationData.csv";
 	Config config = ConfigUtils.loadConfig(configPath);
 	
-	Population pop = PopulationCSV.readPopulationCSV(populationCSVPath);
-	new PopulationWriter(pop).write(config.plans().getInputFile());
+	PopulationCSV.convertPopulationCSV(populationCSVPath,
+		config.plans().getInputFile());
 	
 	
 	BaseScenarioCreator scenario = new DrtScenarioCreator(config, dir, interations, "DRT", dispatcherParams);
@@ -0,0 +1,92 @@
+package syncity.experiments;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import utils.Structs.DispatcherArguments;
+
+/**
+ * A single scenario of an experiment, everything needed to create and run it
+ * in a forked JVM (see {@link ExperimentCellRunner}).
+ */
+public class ExperimentCell {
+
+    private static final String DISPATCHER_PREFIX = "dispatcher.";
+
+    public String name;
+    public String algorithm;
+    public Path scenarioDir;
+    public String populationFile;
+    public String networkFile;
+    public int iterations;
+    public DispatcherArguments dispatcherParams;
+
+    // the resources the cell is expected to use
+    public int numOfCores = 4;
+    public int memoryMb = 8 * 1024;
+
+    public ExperimentCell(String name, String algorithm, Path scenarioDir,
+	    String populationFile, String networkFile, int iterations,
+	    DispatcherArguments dispatcherParams) {
+	this.name = name;
+	this.algorithm = algorithm;
+	this.scenarioDir = scenarioDir;
+	this.populationFile = populationFile;
+	this.networkFile = networkFile;
+	this.iterations = iterations;
+	this.dispatcherParams = dispatcherParams;
+    }
+
+    /**
+     * write the cell to a properties file
+     * @param file the file to write
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+	Properties properties = new Properties();
+	properties.setProperty("name", name);
+	properties.setProperty("algorithm", algorithm);
+	properties.setProperty("scenarioDir", scenarioDir.toString());
+	properties.setProperty("populationFile", populationFile);
+	properties.setProperty("networkFile", networkFile);
+	properties.setProperty("iterations", String.valueOf(iterations));
+	properties.setProperty("numOfCores", String.valueOf(numOfCores));
+	properties.setProperty("memoryMb", String.valueOf(memoryMb));
+	dispatcherParams.writeTo(properties, DISPATCHER_PREFIX);
+	try (Writer writer = Files.newBufferedWriter(file)) {
+	    properties.store(writer, "experiment cell " + name);
+	}
+    }
+
+    /**
+     * read a cell written by {@link #save(Path)}
+     * @param file the properties file of the cell
+     * @return the cell
+     * @throws IOException
+     */
+    public static ExperimentCell load(Path file) throws IOException {
+	Properties properties = new Properties();
+	try (Reader reader = Files.newBufferedReader(file)) {
+	    properties.load(reader);
+	}
+	DispatcherArguments dispatcherParams = new DispatcherArguments();
+	dispatcherParams.readFrom(properties, DISPATCHER_PREFIX);
+	ExperimentCell cell = new ExperimentCell(
+		properties.getProperty("name"),
+		properties.getProperty("algorithm"),
+		Paths.get(properties.getProperty("scenarioDir")),
+		properties.getProperty("populationFile"),
+		properties.getProperty("networkFile"),
+		Integer.parseInt(properties.getProperty("iterations")),
+		dispatcherParams);
+	cell.numOfCores = Integer
+		.parseInt(properties.getProperty("numOfCores"));
+	cell.memoryMb = Integer.parseInt(properties.getProperty("memoryMb"));
+	return cell;
+    }
+}
@@ -0,0 +1,31 @@
+package syncity.experiments;
+
+import java.nio.file.Paths;
+
+import syncity.scenarios.BaseScenarioCreator;
+import syncity.scenarios.ScenarioFactory;
+
+/**
+ * The main class of the forked JVMs of {@link ExperimentScheduler}, creates
+ * the scenario of a single cell, prepares and runs it. The exit code is 0
+ * only if the cell finished successfully.
+ */
+public class ExperimentCellRunner {
+
+    public static void main(String[] args) {
+	try {
+	    ExperimentCell cell = ExperimentCell.load(Paths.get(args[0]));
+	    BaseScenarioCreator scenario = ScenarioFactory.getScenario(
+		    cell.scenarioDir.toString(), cell.algorithm,
+		    cell.populationFile, cell.networkFile, cell.iterations,
+		    cell.dispatcherParams);
+	    scenario.prepare();
+	    scenario.run();
+	} catch (Throwable e) {
+	    e.printStackTrace();
+	    System.exit(1);
+	}
+	// the simulation might leave non daemon threads behind
+	System.exit(0);
+    }
+}
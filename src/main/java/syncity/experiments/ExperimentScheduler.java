@@ -0,0 +1,293 @@
+package syncity.experiments;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import syncity.scenarios.BaseScenarioCreator;
+import syncity.scenarios.ThreadLayout;
+import utils.PhaseMetrics;
+
+/**
+ * Runs the cells of an experiment at the same time, each in a forked JVM
+ * (MATSim and Amodeus keep global state, e.g. SimulationServer.INSTANCE, so
+ * scenarios can not share a JVM).
+ *
+ * A cell starts only when the cores and memory it needs fit in what is left
+ * of the budgets (a cell larger than the budgets runs alone). A failed cell
+ * is retried, the output of the failed attempt is kept aside, and the
+ * results of all cells are written to one summary csv. The JVMs of the cells
+ * do not outlive the scheduler: they are destroyed when the run is
+ * interrupted or fails, and when this JVM exits.
+ */
+public class ExperimentScheduler {
+
+    public static final String CORES_PROPERTY = "syncity.experiments.cores";
+    public static final String MEMORY_PROPERTY = "syncity.experiments.memoryMb";
+    public static final String SUMMARY_FILENAME = "experiment-summary.csv";
+    public static final String PHASES_SUMMARY_FILENAME = "phase-metrics-summary.csv";
+
+    private static final String CELL_FILENAME = "experiment-cell.properties";
+    // the part of the machine memory used by default
+    private static final double DEFAULT_MEMORY_RATIO = 0.8;
+
+    // the running cell JVMs of all the schedulers, destroyed on exit
+    private static final Set<Process> liveCells = ConcurrentHashMap
+	    .newKeySet();
+
+    static {
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    for (Process process : liveCells) {
+		process.destroyForcibly();
+	    }
+	}, "experiment-cells-cleanup"));
+    }
+
+    /**
+     * The outcome of a single cell
+     */
+    public static class CellResult {
+	public final ExperimentCell cell;
+	public final boolean succeeded;
+	public final int attempts;
+	public final int exitCode;
+	public final double wallTime; // [s]
+
+	public CellResult(ExperimentCell cell, boolean succeeded,
+		int attempts, int exitCode, double wallTime) {
+	    this.cell = cell;
+	    this.succeeded = succeeded;
+	    this.attempts = attempts;
+	    this.exitCode = exitCode;
+	    this.wallTime = wallTime;
+	}
+    }
+
+    private final int coreBudget;
+    private final long memoryBudgetMb;
+    private final int maxAttempts;
+    private final List<ExperimentCell> cells = new ArrayList<>();
+    private int usedCores = 0;
+    private long usedMemoryMb = 0;
+
+    /**
+     * @param coreBudget     the number of cores the cells may use together
+     * @param memoryBudgetMb the memory the cells may use together [MB]
+     * @param maxAttempts    the number of times a failing cell is run
+     */
+    public ExperimentScheduler(int coreBudget, long memoryBudgetMb,
+	    int maxAttempts) {
+	this.coreBudget = coreBudget;
+	this.memoryBudgetMb = memoryBudgetMb;
+	this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * A scheduler using all the cores and most of the memory of the machine,
+     * unless the budgets are given with the "syncity.experiments.cores" and
+     * "syncity.experiments.memoryMb" system properties. Failed cells are
+     * retried once.
+     */
+    public static ExperimentScheduler forThisMachine() {
+	int cores = Integer.getInteger(CORES_PROPERTY,
+		Runtime.getRuntime().availableProcessors());
+	long memoryMb = Long.getLong(MEMORY_PROPERTY,
+		(long) (DEFAULT_MEMORY_RATIO * getPhysicalMemoryMb()));
+	return new ExperimentScheduler(cores, memoryMb, 2);
+    }
+
+    public void addCell(ExperimentCell cell) {
+	cells.add(cell);
+    }
+
+    /**
+     * run all the cells and write the summary
+     *
+     * @param summaryDir the directory to write the summary csv to
+     * @return the results, in the order the cells were added
+     * @throws IOException
+     */
+    public List<CellResult> run(Path summaryDir) throws IOException {
+	System.out.println(String.format(
+		"Running %d experiment cells with %d cores and %d MB",
+		cells.size(), coreBudget, memoryBudgetMb));
+	ExecutorService executor = Executors
+		.newFixedThreadPool(Math.max(1, cells.size()));
+	List<CellResult> results = new ArrayList<>();
+	try {
+	    List<Future<CellResult>> futures = new ArrayList<>();
+	    for (ExperimentCell cell : cells) {
+		futures.add(executor.submit(() -> runCell(cell)));
+	    }
+	    for (Future<CellResult> future : futures) {
+		results.add(future.get());
+	    }
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Experiment run failed", e);
+	} finally {
+	    // interrupts the cells still running, which destroys their JVMs
+	    executor.shutdownNow();
+	}
+	writeSummary(results, summaryDir.resolve(SUMMARY_FILENAME));
+	Map<String, Path> metricsFiles = new LinkedHashMap<>();
+	for (ExperimentCell cell : cells) {
+	    metricsFiles.put(cell.name, cell.scenarioDir
+		    .resolve(BaseScenarioCreator.METRICS_FILENAME));
+	}
+	PhaseMetrics.writeSummary(metricsFiles,
+		summaryDir.resolve(PHASES_SUMMARY_FILENAME));
+	return results;
+    }
+
+    /*
+     * run a cell until it succeeds or runs out of attempts
+     */
+    private CellResult runCell(ExperimentCell cell)
+	    throws IOException, InterruptedException {
+	int cores = Math.min(cell.numOfCores, coreBudget);
+	long memoryMb = Math.min(cell.memoryMb, memoryBudgetMb);
+	acquire(cores, memoryMb);
+	long startTime = System.nanoTime();
+	try {
+	    Files.createDirectories(cell.scenarioDir);
+	    Path cellFile = cell.scenarioDir.resolve(CELL_FILENAME);
+	    cell.save(cellFile);
+	    int exitCode = -1;
+	    int attempt = 1;
+	    for (; attempt <= maxAttempts; attempt++) {
+		if (attempt > 1) {
+		    keepFailedOutput(cell, attempt - 1);
+		}
+		System.out.println("Starting cell " + cell.name + " (attempt "
+			+ attempt + ")");
+		Process process = startCell(cell, cellFile, attempt, cores,
+			memoryMb);
+		liveCells.add(process);
+		try {
+		    exitCode = process.waitFor();
+		} finally {
+		    // e.g. the run was interrupted, or another cell failed
+		    liveCells.remove(process);
+		    if (process.isAlive()) {
+			process.destroyForcibly();
+		    }
+		}
+		if (exitCode == 0) {
+		    break;
+		}
+		System.out.println("Cell " + cell.name + " failed with exit code "
+			+ exitCode);
+	    }
+	    double wallTime = (System.nanoTime() - startTime) / 1e9;
+	    return new CellResult(cell, exitCode == 0,
+		    Math.min(attempt, maxAttempts), exitCode, wallTime);
+	} finally {
+	    release(cores, memoryMb);
+	}
+    }
+
+    /*
+     * start the JVM of a cell attempt with the cores and memory reserved for
+     * it (the cell request clamped to the budget)
+     */
+    private Process startCell(ExperimentCell cell, Path cellFile, int attempt,
+	    int cores, long memoryMb) throws IOException {
+	List<String> command = new ArrayList<>();
+	command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+		.toString());
+	command.add("-Xmx" + memoryMb + "m");
+	// the simulation threads are planned by the share of the cell
+	command.add("-D" + ThreadLayout.CORES_PROPERTY + "=" + cores);
+	// pass on the project settings, e.g. the seed and the cache dir
+	for (String name : System.getProperties().stringPropertyNames()) {
+	    if (name.startsWith("syncity.")
+		    && !name.equals(ThreadLayout.CORES_PROPERTY)) {
+		command.add("-D" + name + "=" + System.getProperty(name));
+	    }
+	}
+	command.add("-D" + BaseScenarioCreator.HEADLESS_PROPERTY + "=true");
+	command.add("-cp");
+	command.add(System.getProperty("java.class.path"));
+	command.add(ExperimentCellRunner.class.getName());
+	command.add(cellFile.toString());
+	Path log = cell.scenarioDir.resolve("experiment-attempt-" + attempt + ".log");
+	return new ProcessBuilder(command).redirectErrorStream(true)
+		.redirectOutput(log.toFile()).start();
+    }
+
+    /*
+     * move the output of a failed attempt aside, MATSim does not run into an
+     * existing output directory. The failed outputs of earlier experiment
+     * runs are kept, the attempt gets the first free name.
+     */
+    private static void keepFailedOutput(ExperimentCell cell, int attempt)
+	    throws IOException {
+	Path output = cell.scenarioDir.resolve(BaseScenarioCreator.OUTPUT_DIR);
+	if (!Files.exists(output)) {
+	    return;
+	}
+	String name = BaseScenarioCreator.OUTPUT_DIR + "-failed-" + attempt;
+	Path failed = cell.scenarioDir.resolve(name);
+	for (int i = 2; Files.exists(failed); i++) {
+	    failed = cell.scenarioDir.resolve(name + "-" + i);
+	}
+	Files.move(output, failed);
+    }
+
+    private synchronized void acquire(int cores, long memoryMb)
+	    throws InterruptedException {
+	while (usedCores > 0 && (usedCores + cores > coreBudget
+		|| usedMemoryMb + memoryMb > memoryBudgetMb)) {
+	    wait();
+	}
+	usedCores += cores;
+	usedMemoryMb += memoryMb;
+    }
+
+    private synchronized void release(int cores, long memoryMb) {
+	usedCores -= cores;
+	usedMemoryMb -= memoryMb;
+	notifyAll();
+    }
+
+    private static void writeSummary(List<CellResult> results, Path file)
+	    throws IOException {
+	try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+	    writer.write(
+		    "Cell;Algorithm;Status;Attempts;ExitCode;WallTime[s];ScenarioDir\n");
+	    for (CellResult result : results) {
+		writer.write(String.join(";", result.cell.name,
+			result.cell.algorithm,
+			result.succeeded ? "SUCCEEDED" : "FAILED",
+			String.valueOf(result.attempts),
+			String.valueOf(result.exitCode),
+			String.format("%.1f", result.wallTime),
+			result.cell.scenarioDir.toString()) + "\n");
+	    }
+	}
+	System.out.println("Wrote experiment summary to:  " + file);
+    }
+
+    private static long getPhysicalMemoryMb() {
+	OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	if (os instanceof com.sun.management.OperatingSystemMXBean) {
+	    return ((com.sun.management.OperatingSystemMXBean) os)
+		    .getTotalPhysicalMemorySize() >> 20;
+	}
+	return Runtime.getRuntime().maxMemory() >> 20;
+    }
+}
@@ -0,0 +1,396 @@
+package syncity.experiments;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+import syncity.experiments.ExperimentScheduler.CellResult;
+import syncity.network.GridNetworkGenerator;
+import syncity.population.RandomPopulationGenerator;
+import utils.ArtifactCache;
+import utils.RandomStreams;
+import utils.Structs.BaseStruct;
+import utils.Structs.DispatcherArguments;
+import utils.Structs.NetworkArguments;
+import utils.Structs.PopulationArguments;
+
+/**
+ * Expands a sweep spec over the fields of the arguments structs into
+ * experiment cells and runs them with {@link ExperimentScheduler}.
+ *
+ * The spec is a properties file, for example:
+ *
+ * <pre>
+ * runId=capacity-study
+ * algorithms=HighCapacityDispatcher,DRT
+ * iterations=3
+ * # a grid over comma separated values (a single value fixes the field)
+ * grid.dispatcher.vehiclesNum=100,200,400
+ * grid.population.popSize=5000,10000
+ * # a latin hypercube over min:max ranges
+ * lhs.samples=8
+ * lhs.dispatcher.maxWaitTime=300:900
+ * # the resources of every cell
+ * cell.numOfCores=4
+ * cell.memoryMb=8192
+ * </pre>
+ *
+ * The fields are named by their struct, "dispatcher", "population" or
+ * "network", and the cells are the product of the algorithms, the grid and
+ * the latin hypercube samples. Cells with the same network and population
+ * arguments share the generated files, which are generated once before the
+ * cells are run (and are reused from the {@link ArtifactCache} by later
+ * sweeps).
+ */
+public class ParameterSweep {
+
+    public static final String CELLS_FILENAME = "sweep-cells.csv";
+
+    private static final String GRID_PREFIX = "grid.";
+    private static final String LHS_PREFIX = "lhs.";
+    private static final String LHS_SAMPLES = "lhs.samples";
+    private static final String RANDOM_COMPONENT = "sweep";
+
+    /**
+     * The arguments of a single cell of the sweep
+     */
+    public static class SweepPoint {
+	public final String algorithm;
+	public final DispatcherArguments dispatcher = new DispatcherArguments();
+	public final PopulationArguments population = new PopulationArguments();
+	public final NetworkArguments network = new NetworkArguments();
+	// the swept fields and their values in this point
+	public final Map<String, String> values = new LinkedHashMap<>();
+
+	public SweepPoint(String algorithm) {
+	    this.algorithm = algorithm;
+	}
+
+	void set(String name, String value) {
+	    getStruct(this, name).setField(fieldName(name), value);
+	    values.put(name, value);
+	}
+    }
+
+    private final String runId;
+    private final String[] algorithms;
+    private final int iterations;
+    private final int numOfCores;
+    private final int memoryMb;
+    // the swept fields by name, e.g. "dispatcher.vehiclesNum"
+    private final Map<String, String[]> grid = new LinkedHashMap<>();
+    private final Map<String, double[]> lhs = new LinkedHashMap<>();
+    private final int lhsSamples;
+
+    /**
+     * @param spec the sweep spec, see the class documentation
+     */
+    public ParameterSweep(Properties spec) {
+	runId = spec.getProperty("runId", "sweep");
+	algorithms = splitValues(getRequired(spec, "algorithms"));
+	iterations = Integer.parseInt(spec.getProperty("iterations", "3"));
+	numOfCores = Integer.parseInt(spec.getProperty("cell.numOfCores", "4"));
+	memoryMb = Integer
+		.parseInt(spec.getProperty("cell.memoryMb", "8192"));
+	lhsSamples = Integer.parseInt(spec.getProperty(LHS_SAMPLES, "0"));
+	// sorted, so the expansion does not depend on the properties order
+	for (String key : new TreeSet<>(spec.stringPropertyNames())) {
+	    if (key.startsWith(GRID_PREFIX)) {
+		String name = key.substring(GRID_PREFIX.length());
+		checkField(name);
+		grid.put(name, splitValues(spec.getProperty(key)));
+	    } else if (key.startsWith(LHS_PREFIX) && !key.equals(LHS_SAMPLES)) {
+		String name = key.substring(LHS_PREFIX.length());
+		checkField(name);
+		lhs.put(name, parseRange(name, spec.getProperty(key)));
+	    }
+	}
+	if (!lhs.isEmpty() && lhsSamples <= 0) {
+	    throw new IllegalArgumentException(
+		    "lhs ranges without a positive " + LHS_SAMPLES);
+	}
+    }
+
+    /**
+     * @param specFile a sweep spec properties file
+     * @return the sweep of the spec
+     * @throws IOException
+     */
+    public static ParameterSweep load(Path specFile) throws IOException {
+	Properties spec = new Properties();
+	try (Reader reader = Files.newBufferedReader(specFile)) {
+	    spec.load(reader);
+	}
+	return new ParameterSweep(spec);
+    }
+
+    public String getRunId() {
+	return runId;
+    }
+
+    /**
+     * expand the spec to the arguments of all the cells, the algorithms
+     * change slowest, then the grid fields and then the latin hypercube
+     * samples
+     *
+     * @return the points of the sweep
+     */
+    public List<SweepPoint> expand() {
+	List<String[]> lhsValues = sampleLatinHypercube();
+	List<SweepPoint> points = new ArrayList<>();
+	List<String> gridNames = new ArrayList<>(grid.keySet());
+	int[] gridIndices = new int[gridNames.size()];
+	for (String algorithm : algorithms) {
+	    do {
+		for (String[] sample : lhsValues) {
+		    SweepPoint point = new SweepPoint(algorithm);
+		    for (int i = 0; i < gridIndices.length; i++) {
+			String name = gridNames.get(i);
+			point.set(name, grid.get(name)[gridIndices[i]]);
+		    }
+		    int i = 0;
+		    for (String name : lhs.keySet()) {
+			point.set(name, sample[i++]);
+		    }
+		    points.add(point);
+		}
+	    } while (nextGridIndices(gridIndices, gridNames));
+	}
+	return points;
+    }
+
+    /**
+     * generate the networks and populations of the sweep, run all the cells
+     * and write the cells table and the summary to the run directory
+     *
+     * @param workdir the directory to create the run directory in
+     * @return the results of the cells, in the order of {@link #expand()}
+     * @throws IOException
+     */
+    public List<CellResult> run(Path workdir) throws IOException {
+	Path runDir = workdir.resolve(runId);
+	if (runDir.toFile().exists()) {
+	    System.out.println("Work directory already exists, change runId");
+	    return new ArrayList<>();
+	}
+	Files.createDirectories(runDir);
+
+	List<SweepPoint> points = expand();
+	List<ExperimentCell> cells = new ArrayList<>();
+	Map<String, String> networks = new HashMap<>();
+	Map<String, String> populations = new HashMap<>();
+	for (SweepPoint point : points) {
+	    // a sub directory per distinct argument, the generated files
+	    // names do not depend on all the arguments
+	    String networkKey = ArtifactCache.key(point.network);
+	    String networkFile = networks.get(networkKey);
+	    if (networkFile == null) {
+		networkFile = GridNetworkGenerator.writeCachedNetwork(
+			point.network, runDir.resolve("networks")
+				.resolve("network-" + networks.size())
+				.toString());
+		networks.put(networkKey, networkFile);
+	    }
+	    String populationKey = ArtifactCache.key(networkFile,
+		    point.population);
+	    String populationFile = populations.get(populationKey);
+	    if (populationFile == null) {
+		populationFile = RandomPopulationGenerator
+			.writeCachedPopulation(networkFile, point.population,
+				runDir.resolve("populations")
+					.resolve("population-"
+						+ populations.size())
+					.toString());
+		populations.put(populationKey, populationFile);
+	    }
+
+	    String name = String.format("cell-%03d", cells.size());
+	    ExperimentCell cell = new ExperimentCell(name, point.algorithm,
+		    runDir.resolve(name), populationFile, networkFile,
+		    iterations, point.dispatcher);
+	    cell.numOfCores = numOfCores;
+	    cell.memoryMb = memoryMb;
+	    cells.add(cell);
+	}
+	System.out.println(String.format(
+		"Sweep %s: %d cells, %d networks and %d populations", runId,
+		cells.size(), networks.size(), populations.size()));
+	writeCells(cells, points, runDir.resolve(CELLS_FILENAME));
+
+	ExperimentScheduler scheduler = ExperimentScheduler.forThisMachine();
+	for (ExperimentCell cell : cells) {
+	    scheduler.addCell(cell);
+	}
+	return scheduler.run(runDir);
+    }
+
+    /*
+     * the samples of the latin hypercube, every range is split to lhsSamples
+     * strata and each stratum is used by exactly one sample. Without lhs
+     * ranges a single empty sample, so the grid is expanded alone.
+     */
+    private List<String[]> sampleLatinHypercube() {
+	List<String[]> samples = new ArrayList<>();
+	if (lhs.isEmpty()) {
+	    samples.add(new String[0]);
+	    return samples;
+	}
+	RandomGenerator random = RandomStreams.create(RANDOM_COMPONENT, 0);
+	List<String> names = new ArrayList<>(lhs.keySet());
+	String[][] values = new String[lhsSamples][names.size()];
+	for (int d = 0; d < names.size(); d++) {
+	    double[] range = lhs.get(names.get(d));
+	    int[] strata = shuffledStrata(random);
+	    Class<?> type = getFieldType(names.get(d));
+	    for (int i = 0; i < lhsSamples; i++) {
+		double value = range[0] + (range[1] - range[0])
+			* (strata[i] + random.nextDouble()) / lhsSamples;
+		values[i][d] = type == int.class || type == long.class
+			? String.valueOf(Math.round(value))
+			: String.valueOf(value);
+	    }
+	}
+	for (String[] sample : values) {
+	    samples.add(sample);
+	}
+	return samples;
+    }
+
+    private int[] shuffledStrata(RandomGenerator random) {
+	int[] strata = new int[lhsSamples];
+	for (int i = 0; i < lhsSamples; i++) {
+	    strata[i] = i;
+	}
+	for (int i = lhsSamples - 1; i > 0; i--) {
+	    int j = random.nextInt(i + 1);
+	    int tmp = strata[i];
+	    strata[i] = strata[j];
+	    strata[j] = tmp;
+	}
+	return strata;
+    }
+
+    /*
+     * advance the grid indices like a counter, the last field changes
+     * fastest, false after the last combination
+     */
+    private boolean nextGridIndices(int[] indices, List<String> names) {
+	for (int i = indices.length - 1; i >= 0; i--) {
+	    indices[i]++;
+	    if (indices[i] < grid.get(names.get(i)).length) {
+		return true;
+	    }
+	    indices[i] = 0;
+	}
+	return false;
+    }
+
+    private void writeCells(List<ExperimentCell> cells,
+	    List<SweepPoint> points, Path file) throws IOException {
+	List<String> names = new ArrayList<>(grid.keySet());
+	names.addAll(lhs.keySet());
+	try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+	    writer.write("Cell;Algorithm;Network;Population");
+	    for (String name : names) {
+		writer.write(";" + name);
+	    }
+	    writer.write("\n");
+	    for (int i = 0; i < cells.size(); i++) {
+		ExperimentCell cell = cells.get(i);
+		writer.write(String.join(";", cell.name, cell.algorithm,
+			cell.networkFile, cell.populationFile));
+		for (String name : names) {
+		    writer.write(";" + points.get(i).values.get(name));
+		}
+		writer.write("\n");
+	    }
+	}
+	System.out.println("Wrote sweep cells to:  " + file);
+    }
+
+    private static BaseStruct getStruct(SweepPoint point, String name) {
+	String struct = name.substring(0, Math.max(0, name.indexOf('.')));
+	switch (struct) {
+	case "dispatcher":
+	    return point.dispatcher;
+	case "population":
+	    return point.population;
+	case "network":
+	    return point.network;
+	default:
+	    throw new IllegalArgumentException("Unknown arguments " + name
+		    + ", expected dispatcher, population or network fields");
+	}
+    }
+
+    private static String fieldName(String name) {
+	return name.substring(name.indexOf('.') + 1);
+    }
+
+    private static Class<?> getFieldType(String name) {
+	BaseStruct struct = getStruct(new SweepPoint(""), name);
+	try {
+	    Field field = struct.getClass().getField(fieldName(name));
+	    return field.getType();
+	} catch (NoSuchFieldException e) {
+	    throw new IllegalArgumentException("No public field " + name, e);
+	}
+    }
+
+    private static void checkField(String name) {
+	getFieldType(name);
+    }
+
+    private static double[] parseRange(String name, String range) {
+	String[] bounds = range.split(":");
+	Class<?> type = getFieldType(name);
+	if (bounds.length != 2 || type == boolean.class
+		|| type == String.class) {
+	    throw new IllegalArgumentException(
+		    "Expected a numeric min:max range for " + name);
+	}
+	return new double[] { Double.parseDouble(bounds[0].trim()),
+		Double.parseDouble(bounds[1].trim()) };
+    }
+
+    private static String[] splitValues(String values) {
+	String[] split = values.split(",");
+	for (int i = 0; i < split.length; i++) {
+	    split[i] = split[i].trim();
+	}
+	return split;
+    }
+
+    private static String getRequired(Properties spec, String key) {
+	String value = spec.getProperty(key);
+	if (value == null) {
+	    throw new IllegalArgumentException("Missing " + key + " in sweep spec");
+	}
+	return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.out.println("Usage: ParameterSweep <sweep spec> [workdir]");
+	    return;
+	}
+	Path workdir = Paths.get(".").toAbsolutePath();
+	if (args.length > 1) {
+	    workdir = Paths.get(args[1]).toAbsolutePath();
+	}
+	load(Paths.get(args[0])).run(workdir);
+    }
+}
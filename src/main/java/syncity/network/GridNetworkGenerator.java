@@ -1,12 +1,22 @@
 package syncity.network;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.random.RandomGenerator;
 
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
@@ -16,9 +26,12 @@ import org.matsim.api.core.v01.network.NetworkFactory;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.io.NetworkWriter;
+import org.matsim.core.utils.io.IOUtils;
 
+import utils.ArtifactCache;
 import utils.BasicUtils;
 import utils.MatsimUtils;
+import utils.RandomStreams;
 import utils.Structs.NetworkArguments;
 
 /**
@@ -39,6 +52,10 @@ public class GridNetworkGenerator {
     private static final int DEFAULT_AVENUES_NUM = 100;
     // default speed for both streets and avenues
     private static final double DEFAULT_SPEED = 15; // [km/h]
+    // number of consecutive nodes generated by each task in parallel mode
+    private static final int DEFAULT_TILE_SIZE = 1 << 14;
+    // name of the random streams used by the parallel generation
+    private static final String RANDOM_COMPONENT = "grid";
 
     private long capacity;
     private int linkLength;
@@ -48,6 +65,11 @@ public class GridNetworkGenerator {
     private double driveSpeedStreets;
     private double driveSpeedAvenues;
     private Network net;
+    // the grid nodes, indexed by getNodeIndex(street, avenue)
+    private Node[] gridNodes;
+    // seed of the tiles random streams in parallel mode
+    private long seed = RandomStreams.getSeed();
+    private int tileSize = DEFAULT_TILE_SIZE;
 
     public GridNetworkGenerator() {
 	this(DEFAULT_CAPACITY, DEFALUT_STREETS_NUM, DEFAULT_AVENUES_NUM,
@@ -103,10 +125,51 @@ public class GridNetworkGenerator {
 	return grid.writeNetwork(outPath);
     }
 
+    /**
+     * Writes the network of the given parameters to a directory through the
+     * default {@link ArtifactCache}. The network is generated only if it is
+     * not cached, in parallel so it depends only on the parameters and the
+     * seed. The binary network is cached next to the xml, so reading the
+     * network with {@link MatsimUtils#readNetwork(String)} is fast.
+     * 
+     * @param params the network parameters
+     * @param outDir the directory to link the network files into
+     * @return the absolute path of the network file
+     * @throws IOException
+     */
+    public static String writeCachedNetwork(NetworkArguments params,
+	    String outDir) throws IOException {
+	long seed = RandomStreams.getSeed();
+	String key = ArtifactCache.key("network", params, seed);
+	Path cached = ArtifactCache.getDefault().getOrCreate(key, dir -> {
+	    GridNetworkGenerator grid = new GridNetworkGenerator(params);
+	    grid.setSeed(seed);
+	    grid.generateGridNetwork(
+		    Runtime.getRuntime().availableProcessors());
+	    String networkFile = grid.writeNetwork(dir.toString());
+	    grid.writeBinaryNetwork(dir.toString());
+	    return Paths.get(networkFile);
+	});
+	return ArtifactCache.linkToDir(cached, Paths.get(outDir))
+		.toAbsolutePath().toString();
+    }
+
     public Network getNetwork() {
 	return this.net;
     }
 
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
+    /*
+     * the number of nodes of a tile, the nodes shifts depend on it so it is
+     * only changed by the tests (to generate small grids of several tiles)
+     */
+    void setTileSize(int tileSize) {
+	this.tileSize = tileSize;
+    }
+
     public int getNumOfStreets() {
 	return this.numOfStreets;
     }
@@ -130,20 +193,54 @@ public class GridNetworkGenerator {
      * @throws IOException
      */
     public String writeNetwork(String outPath) throws IOException {
-	Path out = Paths.get(outPath);
+	Path out = resolveOutputFile(outPath, ".xml");
+
+	// write network
+	new NetworkWriter(this.net).write(out.toString());
+	writeLinkLengthDistribution(out.getParent());
+	return out.toAbsolutePath().toString();
+    }
+
+    /**
+     * Writes the network in the binary format of {@link NetworkBinary}, if
+     * path is folder the default name would be the xml name followed by
+     * {@value NetworkBinary#FILE_EXTENSION}, so it is picked up instead of the
+     * xml by {@link MatsimUtils#readNetwork(String)}
+     * 
+     * @param outPath the path to write the binary network to
+     * @return the absolute path of the created file
+     * @throws IOException
+     */
+    public String writeBinaryNetwork(String outPath) throws IOException {
+	Path out = resolveOutputFile(outPath,
+		".xml" + NetworkBinary.FILE_EXTENSION);
+	return NetworkBinary.writeNetworkBinary(this.net, out.toString());
+    }
+
+    /**
+     * Resolves the file to write the network to, if path is folder the
+     * default name would be "GridNetwork-(numOfStreets)_(numOfAvenues)"
+     * followed by the extension. Creates the output folder if necessary, and
+     * removes an existing file (it may be linked out of the cache).
+     * 
+     * @param outPath   the path to write the network to
+     * @param extension the extension of the default file name
+     * @return the path of the file to write
+     * @throws IOException
+     */
+    private Path resolveOutputFile(String outPath, String extension)
+	    throws IOException {
+	Path out = Paths.get(outPath).toAbsolutePath();
 	Path outputFolder;
 	if (Files.isDirectory(out)) {
 	    outputFolder = out;
-	    out = out.resolve(this.getTitle() + ".xml");
+	    out = out.resolve(this.getTitle() + extension);
 	} else
 	    outputFolder = out.getParent();
 	// create output folder if necessary
 	Files.createDirectories(outputFolder);
-
-	// write network
-	new NetworkWriter(this.net).write(out.toString());
-	writeLinkLengthDistribution(outputFolder);
-	return out.toAbsolutePath().toString();
+	ArtifactCache.unlinkOutput(out);
+	return out;
     }
 
     /*
@@ -155,50 +252,301 @@ public class GridNetworkGenerator {
 	Map<Integer, Long> counts = net.getLinks().values().stream() //
 		.collect(Collectors.groupingBy(l -> (int) (l.getLength()),
 			Collectors.counting()));
-	String filename = directory
-		.resolve(getTitle() + ".linkLengthDistribution.csv").toString();
-	BasicUtils.writeSimpleMap(counts, filename,
+	writeLinkLengthDistribution(counts, directory);
+    }
+
+    private void writeLinkLengthDistribution(Map<Integer, Long> counts,
+	    Path directory) throws IOException {
+	Path file = directory
+		.resolve(getTitle() + ".linkLengthDistribution.csv");
+	ArtifactCache.unlinkOutput(file);
+	BasicUtils.writeSimpleMap(counts, file.toString(),
 		Arrays.asList("LinkLength", "Count"));
     }
 
+    /**
+     * Generates the grid and writes it directly to a network xml, without
+     * keeping the network in memory. The nodes are shifted as in
+     * {@link #generateGridNetwork(int)} with the same seed, the nodes tiles
+     * are simply generated twice - once for the nodes section and once for
+     * the links section. Only two avenues rows of coordinates are kept, so
+     * the memory does not grow with the grid size. The link length
+     * distribution is collected while writing the links.
+     * 
+     * @param outPath the path to write the network xml to, if path is folder
+     *                the default name would be used (see
+     *                {@link #writeNetwork(String)})
+     * @param gzip    whether to compress the network file
+     * @return the absolute path of the created file
+     * @throws IOException
+     */
+    public String writeNetworkStreaming(String outPath, boolean gzip)
+	    throws IOException {
+	long startTime = System.nanoTime();
+	Path out = resolveOutputFile(outPath, gzip ? ".xml.gz" : ".xml");
+	if (gzip && !out.toString().endsWith(".gz")) {
+	    out = Paths.get(out.toString() + ".gz");
+	}
+	Map<Integer, Long> counts = new HashMap<>();
+	BufferedWriter writer = IOUtils.getBufferedWriter(out.toString());
+	try {
+	    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	    writer.write("<!DOCTYPE network SYSTEM "
+		    + "\"http://www.matsim.org/files/dtd/network_v2.dtd\">\n");
+	    writer.write("<network>\n");
+	    writer.write("\t<nodes>\n");
+	    writeStreamedNodes(writer);
+	    writer.write("\t</nodes>\n");
+	    writer.write("\t<links capperiod=\"01:00:00\" "
+		    + "effectivecellsize=\"7.5\" effectivelanewidth=\"3.75\">\n");
+	    long numOfLinks = writeStreamedLinks(writer, counts);
+	    writer.write("\t</links>\n");
+	    writer.write("</network>\n");
+	    System.out.println(String.format(
+		    "Streamed %d nodes and %d links to %s in %.2f s",
+		    (long) this.numOfStreets * this.numOfAvenues, numOfLinks,
+		    out, (System.nanoTime() - startTime) / 1e9));
+	} finally {
+	    writer.close();
+	}
+	writeLinkLengthDistribution(counts, out.getParent());
+	return out.toString();
+    }
+
+    /*
+     * write the nodes section, tile by tile in the nodes order
+     */
+    private void writeStreamedNodes(BufferedWriter writer)
+	    throws IOException {
+	long numOfNodes = (long) this.numOfStreets * this.numOfAvenues;
+	RandomGenerator random = null;
+	for (long i = 0; i < numOfNodes; i++) {
+	    if (i % this.tileSize == 0) {
+		random = RandomStreams.create(this.seed, RANDOM_COMPONENT,
+			i / this.tileSize);
+	    }
+	    int st = (int) (i / this.numOfAvenues);
+	    int av = (int) (i % this.numOfAvenues);
+	    Coord coord = createCoord(st, av, random);
+	    writer.write("\t\t<node id=\"" + getNodeIdString(st, av)
+		    + "\" x=\"" + coord.getX() + "\" y=\"" + coord.getY()
+		    + "\" />\n");
+	}
+    }
+
+    /*
+     * write the links section in the same order as the generation, the
+     * coordinates are generated again and only the current and previous
+     * streets are kept
+     */
+    private long writeStreamedLinks(BufferedWriter writer,
+	    Map<Integer, Long> counts) throws IOException {
+	long numOfNodes = (long) this.numOfStreets * this.numOfAvenues;
+	long numOfLinks = 0;
+	Coord[] prevStreet = new Coord[this.numOfAvenues];
+	Coord[] curStreet = new Coord[this.numOfAvenues];
+	RandomGenerator random = null;
+	for (long i = 0; i < numOfNodes; i++) {
+	    if (i % this.tileSize == 0) {
+		random = RandomStreams.create(this.seed, RANDOM_COMPONENT,
+			i / this.tileSize);
+	    }
+	    int st = (int) (i / this.numOfAvenues);
+	    int av = (int) (i % this.numOfAvenues);
+	    if (av == 0 && st > 0) {
+		Coord[] tmp = prevStreet;
+		prevStreet = curStreet;
+		curStreet = tmp;
+	    }
+	    curStreet[av] = createCoord(st, av, random);
+	    String nodeId = getNodeIdString(st, av);
+	    if (av > 0) {
+		numOfLinks += writeStreamedConnection(writer, nodeId,
+			curStreet[av], getNodeIdString(st, av - 1),
+			curStreet[av - 1], this.driveSpeedStreets, counts);
+	    }
+	    if (st > 0) {
+		numOfLinks += writeStreamedConnection(writer, nodeId,
+			curStreet[av], getNodeIdString(st - 1, av),
+			prevStreet[av], this.driveSpeedAvenues, counts);
+	    }
+	}
+	return numOfLinks;
+    }
+
+    /*
+     * write a bidirectional connection with the same attributes as
+     * connectNodes, returns the number of links written
+     */
+    private int writeStreamedConnection(BufferedWriter writer, String srcId,
+	    Coord srcCoord, String dstId, Coord dstCoord, double driveSpeed,
+	    Map<Integer, Long> counts) throws IOException {
+	double linkLength = NetworkUtils.getEuclideanDistance(srcCoord,
+		dstCoord);
+	double travelTime = linkLength / driveSpeed * 3.6; // [s]
+	// the same as setLinkAttributes
+	double freespeed = linkLength / (travelTime - 0.1);
+	String attributes = "\" length=\"" + linkLength + "\" freespeed=\""
+		+ freespeed + "\" capacity=\"" + (double) this.capacity
+		+ "\" permlanes=\"1.0\" oneway=\"1\" modes=\"car\" />\n";
+	writer.write("\t\t<link id=\"" + srcId + "->" + dstId + "\" from=\""
+		+ srcId + "\" to=\"" + dstId + attributes);
+	writer.write("\t\t<link id=\"" + dstId + "->" + srcId + "\" from=\""
+		+ dstId + "\" to=\"" + srcId + attributes);
+	counts.merge((int) linkLength, 2L, Long::sum);
+	return 2;
+    }
+
     /*
      * create the grid network according to the class parameters
      */
     public void generateGridNetwork() {
+	long startTime = System.nanoTime();
+	this.gridNodes = new Node[Math.multiplyExact(this.numOfStreets,
+		this.numOfAvenues)];
 	for (int st = 0; st < this.numOfStreets; ++st) {
 	    for (int av = 0; av < this.numOfAvenues; ++av) {
 		Node newNode = createNode(st, av);
 		this.net.addNode(newNode);
+		this.gridNodes[getNodeIndex(st, av)] = newNode;
 		// connect new node to the previous nodes
 		if (av > 0) {
-		    Node prevAvNode = getNodeByStAv(st, av - 1, this.net);
+		    Node prevAvNode = getNode(st, av - 1);
 		    connectNodes(newNode, prevAvNode, this.net,
 			    this.driveSpeedStreets, this.capacity, true);
 		}
 		if (st > 0) {
-		    Node prevStNode = getNodeByStAv(st - 1, av, this.net);
+		    Node prevStNode = getNode(st - 1, av);
 		    connectNodes(newNode, prevStNode, this.net,
 			    this.driveSpeedAvenues, this.capacity, true);
 		}
 	    }
 	}
+	printGenerationRate(startTime);
+    }
+
+    /**
+     * create the grid network using several threads. The grid is split into
+     * tiles of consecutive nodes (street major) and each tile shifts its
+     * nodes with its own random stream, so for a given seed the network is
+     * the same no matter how many threads are used. Notice the nodes are
+     * shifted differently than in the single threaded
+     * {@link #generateGridNetwork()}.
+     * 
+     * @param numOfThreads the number of threads to generate with
+     */
+    public void generateGridNetwork(int numOfThreads) {
+	long startTime = System.nanoTime();
+	this.gridNodes = new Node[Math.multiplyExact(this.numOfStreets,
+		this.numOfAvenues)];
+	int numOfTiles = (this.gridNodes.length + this.tileSize - 1)
+		/ this.tileSize;
+	List<List<Link>> tilesLinks = new ArrayList<>(numOfTiles);
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    // links need the coordinates of the neighbour tiles nodes
+	    pool.submit(() -> IntStream.range(0, numOfTiles).parallel()
+		    .forEach(this::createTileNodes)).get();
+	    tilesLinks.addAll(pool.submit(() -> IntStream.range(0, numOfTiles)
+		    .parallel().mapToObj(this::createTileLinks)
+		    .collect(Collectors.toList())).get());
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Parallel grid generation failed", e);
+	} finally {
+	    pool.shutdown();
+	}
+	// merge the tiles into the network in a fixed order
+	for (Node node : this.gridNodes) {
+	    this.net.addNode(node);
+	}
+	for (List<Link> links : tilesLinks) {
+	    links.forEach(this.net::addLink);
+	}
+	printGenerationRate(startTime);
+    }
+
+    /*
+     * create the nodes of a single tile with the tile's random stream
+     */
+    private void createTileNodes(int tile) {
+	RandomGenerator random = RandomStreams.create(this.seed,
+		RANDOM_COMPONENT, tile);
+	int end = Math.min(this.gridNodes.length,
+		(tile + 1) * this.tileSize);
+	for (int i = tile * this.tileSize; i < end; i++) {
+	    this.gridNodes[i] = createNode(i / this.numOfAvenues,
+		    i % this.numOfAvenues, random);
+	}
+    }
+
+    /*
+     * create the links from the nodes of a single tile to their previous
+     * neighbours, in the same order as the single threaded generation
+     */
+    private List<Link> createTileLinks(int tile) {
+	NetworkFactory fac = this.net.getFactory();
+	int end = Math.min(this.gridNodes.length,
+		(tile + 1) * this.tileSize);
+	List<Link> links = new ArrayList<>(4 * (end - tile * this.tileSize));
+	for (int i = tile * this.tileSize; i < end; i++) {
+	    int st = i / this.numOfAvenues;
+	    int av = i % this.numOfAvenues;
+	    if (av > 0) {
+		createLinks(this.gridNodes[i], getNode(st, av - 1), fac,
+			this.driveSpeedStreets, this.capacity, true, links::add);
+	    }
+	    if (st > 0) {
+		createLinks(this.gridNodes[i], getNode(st - 1, av), fac,
+			this.driveSpeedAvenues, this.capacity, true, links::add);
+	    }
+	}
+	return links;
+    }
+
+    /*
+     * print the generation throughput, useful when generating large grids
+     */
+    private void printGenerationRate(long startTime) {
+	double seconds = (System.nanoTime() - startTime) / 1e9;
+	int nodes = this.net.getNodes().size();
+	System.out.println(String.format(
+		"Generated %d nodes and %d links in %.2f s (%.0f nodes/sec)",
+		nodes, this.net.getLinks().size(), seconds,
+		nodes / Math.max(seconds, 1e-9)));
     }
 
     /*
      * creates a node with coordinates of the given street 
      */
     protected Node createNode(int streetNum, int avenueNum) {
+	return createNode(streetNum, avenueNum,
+		BasicUtils.getUniformRandomGenerator());
+    }
+
+    /*
+     * The same as above but shifts the node with the given random stream
+     */
+    protected Node createNode(int streetNum, int avenueNum,
+	    RandomGenerator random) {
 	NetworkFactory fac = this.net.getFactory();
 	// create new node
 	String idString = getNodeIdString(streetNum, avenueNum);
-	double xCoord = BasicUtils.randAroundBase(streetNum * this.linkLength,
-		shootNodeDistance);
-	double yCoord = BasicUtils.randAroundBase(avenueNum * this.linkLength,
-		shootNodeDistance);
-	Coord coord = new Coord(xCoord, yCoord);
+	Coord coord = createCoord(streetNum, avenueNum, random);
 	return fac.createNode(Id.createNodeId(idString), coord);
     }
 
+    /*
+     * the shifted coordinates of the node in the given street and avenue
+     */
+    private Coord createCoord(int streetNum, int avenueNum,
+	    RandomGenerator random) {
+	double xCoord = BasicUtils.randAroundBase(random,
+		streetNum * this.linkLength, shootNodeDistance);
+	double yCoord = BasicUtils.randAroundBase(random,
+		avenueNum * this.linkLength, shootNodeDistance);
+	return new Coord(xCoord, yCoord);
+    }
+
     /**
      * connect to given nodes in the given network
      * 
@@ -213,7 +561,18 @@ public class GridNetworkGenerator {
      */
     public static void connectNodes(Node srcNode, Node dstNode, Network net,
 	    double driveSpeed, long linkCapacity, Boolean bidirection) {
-	NetworkFactory fac = net.getFactory();
+	createLinks(srcNode, dstNode, net.getFactory(), driveSpeed,
+		linkCapacity, bidirection, net::addLink);
+    }
+
+    /*
+     * create the links connecting the two nodes and pass them to linkSink
+     * instead of adding them to a network, see connectNodes for the
+     * parameters
+     */
+    private static void createLinks(Node srcNode, Node dstNode,
+	    NetworkFactory fac, double driveSpeed, long linkCapacity,
+	    boolean bidirection, Consumer<Link> linkSink) {
 	String srcId = srcNode.getId().toString();
 	String dstId = dstNode.getId().toString();
 	double linkLength = MatsimUtils.nodesDistance(srcNode, dstNode);
@@ -222,39 +581,32 @@ public class GridNetworkGenerator {
 	Link l = fac.createLink(Id.createLinkId(srcId + "->" + dstId), srcNode,
 		dstNode);
 	setLinkAttributes(l, linkCapacity, linkLength, travelTime);
-	net.addLink(l);
+	linkSink.accept(l);
 	if (bidirection) {
 	    // create reverse link
 	    l = fac.createLink(Id.createLinkId(dstId + "->" + srcId), dstNode,
 		    srcNode);
 	    setLinkAttributes(l, linkCapacity, linkLength, travelTime);
-	    net.addLink(l);
+	    linkSink.accept(l);
 	}
     }
 
     /**
-     * get a node by it's location
+     * get a node by it's location, available after the grid was generated
      * 
      * @param streetNum the street number the nodes is in (starts from 0)
      * @param avenueNum the avenue number the nodes is in (starts from 0)
-     * @param net       the network the node is in
      * @return the node in the specified location
      */
-    private static Node getNodeByStAv(int streetNum, int avenueNum,
-	    Network net) {
-	String id = getNodeIdString(streetNum, avenueNum);
-	return getNodeById(id, net);
+    public Node getNode(int streetNum, int avenueNum) {
+	return this.gridNodes[getNodeIndex(streetNum, avenueNum)];
     }
 
-    /**
-     * get a node from the network by it's String id
-     * 
-     * @param nodeId the node's id string
-     * @param net    the network
-     * @return the nodes with that id
+    /*
+     * the position of a node in the flat grid nodes array (street major)
      */
-    private static Node getNodeById(String nodeId, Network net) {
-	return net.getNodes().get(Id.createNodeId(nodeId));
+    private int getNodeIndex(int streetNum, int avenueNum) {
+	return streetNum * this.numOfAvenues + avenueNum;
     }
 
     /**
@@ -290,7 +642,7 @@ public class GridNetworkGenerator {
     public static void main(String[] args) throws IOException {
 	GridNetworkGenerator grid;
 
-	if (args.length == 2) {
+	if (args.length >= 2) {
 	    int streetsNum = Integer.parseInt(args[0]);
 	    int avenueNum = Integer.parseInt(args[1]);
 	    grid = new GridNetworkGenerator(streetsNum, avenueNum);
@@ -298,7 +650,12 @@ public class GridNetworkGenerator {
 	    grid = new GridNetworkGenerator();
 	}
 
-	grid.generateGridNetwork();
+	if (args.length == 3) {
+	    // third argument is the number of generation threads
+	    grid.generateGridNetwork(Integer.parseInt(args[2]));
+	} else {
+	    grid.generateGridNetwork();
+	}
 	grid.writeNetwork("output/");
 	;
     }
@@ -0,0 +1,214 @@
+package syncity.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+
+import utils.BinaryFiles;
+
+/**
+ * A compact columnar binary format for networks, much faster to load than
+ * the network xml.
+ * 
+ * The file holds a header, the node ids string table, the nodes x and y
+ * arrays, the link ids string table, the links from/to node indices, their
+ * length, capacity, freespeed and number of lanes arrays, and a table of the
+ * distinct allowed modes sets with an index into it per link. Node and link
+ * attributes other than these are not kept. The reader memory-maps the file,
+ * so it is limited to 2GB (about 20M links).
+ */
+public class NetworkBinary {
+
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x53434e42; // "SCNB"
+    private static final int VERSION = 1;
+    private static final String MODES_SEPARATOR = ",";
+
+    /**
+     * write the network in the binary format
+     * 
+     * @param network  the network to write
+     * @param filename the file to write to
+     * @return the filename
+     * @throws IOException
+     */
+    public static String writeNetworkBinary(Network network, String filename)
+	    throws IOException {
+	Node[] nodes = network.getNodes().values().toArray(new Node[0]);
+	Link[] links = network.getLinks().values().toArray(new Link[0]);
+	Map<Id<Node>, Integer> nodeIndex = new HashMap<>(
+		nodes.length * 4 / 3 + 1);
+	for (int i = 0; i < nodes.length; i++) {
+	    nodeIndex.put(nodes[i].getId(), i);
+	}
+	Map<String, Integer> modeSets = new LinkedHashMap<>();
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		new FileOutputStream(filename), 1 << 16));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(nodes.length);
+	    out.writeInt(links.length);
+	    out.writeDouble(network.getCapacityPeriod());
+	    out.writeDouble(network.getEffectiveCellSize());
+	    out.writeDouble(network.getEffectiveLaneWidth());
+
+	    // nodes
+	    String[] ids = new String[nodes.length];
+	    for (int i = 0; i < nodes.length; i++) {
+		ids[i] = nodes[i].getId().toString();
+	    }
+	    BinaryFiles.writeStringTable(out, ids);
+	    for (Node node : nodes) {
+		out.writeDouble(node.getCoord().getX());
+	    }
+	    for (Node node : nodes) {
+		out.writeDouble(node.getCoord().getY());
+	    }
+
+	    // links
+	    ids = new String[links.length];
+	    for (int i = 0; i < links.length; i++) {
+		ids[i] = links[i].getId().toString();
+	    }
+	    BinaryFiles.writeStringTable(out, ids);
+	    for (Link link : links) {
+		out.writeInt(nodeIndex.get(link.getFromNode().getId()));
+	    }
+	    for (Link link : links) {
+		out.writeInt(nodeIndex.get(link.getToNode().getId()));
+	    }
+	    for (Link link : links) {
+		out.writeDouble(link.getLength());
+	    }
+	    for (Link link : links) {
+		out.writeDouble(link.getCapacity());
+	    }
+	    for (Link link : links) {
+		out.writeDouble(link.getFreespeed());
+	    }
+	    for (Link link : links) {
+		out.writeDouble(link.getNumberOfLanes());
+	    }
+	    int[] linkModes = new int[links.length];
+	    for (int i = 0; i < links.length; i++) {
+		String[] modes = links[i].getAllowedModes()
+			.toArray(new String[0]);
+		Arrays.sort(modes);
+		String key = String.join(MODES_SEPARATOR, modes);
+		linkModes[i] = modeSets.computeIfAbsent(key,
+			k -> modeSets.size());
+	    }
+	    BinaryFiles.writeStringTable(out, modeSets.keySet().toArray(new String[0]));
+	    for (int modes : linkModes) {
+		out.writeInt(modes);
+	    }
+	} finally {
+	    out.close();
+	}
+	return filename;
+    }
+
+    /**
+     * read a network written by {@link #writeNetworkBinary(Network, String)}
+     * 
+     * @param filename the binary network file
+     * @return a new network
+     * @throws IOException
+     */
+    public static Network readNetworkBinary(String filename)
+	    throws IOException {
+	ByteBuffer buffer = BinaryFiles.map(filename);
+	if (buffer.getInt() != MAGIC) {
+	    throw new IOException(filename + " is not a binary network file");
+	}
+	int version = buffer.getInt();
+	if (version != VERSION) {
+	    throw new IOException("Unsupported binary network version "
+		    + version + " in " + filename);
+	}
+	int numOfNodes = buffer.getInt();
+	int numOfLinks = buffer.getInt();
+
+	Network network = NetworkUtils.createNetwork();
+	network.setCapacityPeriod(buffer.getDouble());
+	network.setEffectiveCellSize(buffer.getDouble());
+	network.setEffectiveLaneWidth(buffer.getDouble());
+	NetworkFactory fac = network.getFactory();
+
+	// nodes
+	String[] nodeIds = BinaryFiles.readStringTable(buffer, numOfNodes);
+	double[] xs = readDoubles(buffer, numOfNodes);
+	double[] ys = readDoubles(buffer, numOfNodes);
+	Node[] nodes = new Node[numOfNodes];
+	for (int i = 0; i < numOfNodes; i++) {
+	    nodes[i] = fac.createNode(Id.createNodeId(nodeIds[i]),
+		    new Coord(xs[i], ys[i]));
+	    network.addNode(nodes[i]);
+	}
+
+	// links
+	String[] linkIds = BinaryFiles.readStringTable(buffer, numOfLinks);
+	int[] from = readInts(buffer, numOfLinks);
+	int[] to = readInts(buffer, numOfLinks);
+	double[] length = readDoubles(buffer, numOfLinks);
+	double[] capacity = readDoubles(buffer, numOfLinks);
+	double[] freespeed = readDoubles(buffer, numOfLinks);
+	double[] lanes = readDoubles(buffer, numOfLinks);
+	int numOfModeSets = buffer.getInt(buffer.position());
+	String[] modeSetsStrings = BinaryFiles.readStringTable(buffer, numOfModeSets);
+	int[] linkModes = readInts(buffer, numOfLinks);
+	@SuppressWarnings("unchecked")
+	Set<String>[] modeSets = new Set[numOfModeSets];
+	for (int i = 0; i < numOfModeSets; i++) {
+	    modeSets[i] = new HashSet<>();
+	    for (String mode : modeSetsStrings[i].split(MODES_SEPARATOR)) {
+		if (!mode.isEmpty())
+		    modeSets[i].add(mode);
+	    }
+	}
+	for (int i = 0; i < numOfLinks; i++) {
+	    Link link = fac.createLink(Id.createLinkId(linkIds[i]),
+		    nodes[from[i]], nodes[to[i]]);
+	    link.setLength(length[i]);
+	    link.setCapacity(capacity[i]);
+	    link.setFreespeed(freespeed[i]);
+	    link.setNumberOfLanes(lanes[i]);
+	    link.setAllowedModes(modeSets[linkModes[i]]);
+	    network.addLink(link);
+	}
+	return network;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int size) {
+	int[] values = new int[size];
+	buffer.asIntBuffer().get(values);
+	buffer.position(buffer.position() + size * Integer.BYTES);
+	return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int size) {
+	double[] values = new double[size];
+	buffer.asDoubleBuffer().get(values);
+	buffer.position(buffer.position() + size * Double.BYTES);
+	return values;
+    }
+}
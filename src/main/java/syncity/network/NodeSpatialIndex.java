@@ -0,0 +1,252 @@
+package syncity.network;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Node;
+
+/**
+ * A uniform grid of buckets over the nodes coordinates, used to sample nodes
+ * within a distance range from another node in bounded time.
+ * 
+ * The nodes are identified by their (dense) index in the array given to the
+ * constructor. The coordinates are kept in primitive arrays sorted by bucket,
+ * and each bucket is a range in these arrays. The index is read-only after
+ * construction, so it can be shared between threads.
+ */
+public class NodeSpatialIndex {
+
+    // average number of nodes in a bucket
+    private static final int NODES_PER_BUCKET = 4;
+    // number of random draws before counting the nodes in range
+    private static final int REJECTION_ATTEMPTS = 16;
+
+    private final Node[] nodes;
+    private final Map<Id<Node>, Integer> nodesIndices;
+    private final double[] xs;
+    private final double[] ys;
+
+    private final double minX;
+    private final double minY;
+    private final double bucketSize;
+    private final int numOfCols;
+    private final int numOfRows;
+    // nodes of bucket b are at bucketStart[b] until bucketStart[b + 1]
+    private final int[] bucketStart;
+    private final int[] bucketNodes;
+    private final double[] bucketXs;
+    private final double[] bucketYs;
+
+    public NodeSpatialIndex(Node[] nodes) {
+	this.nodes = nodes;
+	int n = nodes.length;
+	this.nodesIndices = new HashMap<>(n * 4 / 3 + 1);
+	this.xs = new double[n];
+	this.ys = new double[n];
+	double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+	double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+	for (int i = 0; i < n; i++) {
+	    nodesIndices.put(nodes[i].getId(), i);
+	    xs[i] = nodes[i].getCoord().getX();
+	    ys[i] = nodes[i].getCoord().getY();
+	    minX = Math.min(minX, xs[i]);
+	    minY = Math.min(minY, ys[i]);
+	    maxX = Math.max(maxX, xs[i]);
+	    maxY = Math.max(maxY, ys[i]);
+	}
+	double width = n > 0 ? maxX - minX : 0;
+	double height = n > 0 ? maxY - minY : 0;
+	this.minX = n > 0 ? minX : 0;
+	this.minY = n > 0 ? minY : 0;
+	// the second term handles line networks, where the area is ~0
+	double size = Math.max(
+		Math.sqrt(width * height * NODES_PER_BUCKET / Math.max(n, 1)),
+		Math.max(width, height) * NODES_PER_BUCKET / Math.max(n, 1));
+	this.bucketSize = size > 0 ? size : 1;
+	this.numOfCols = (int) (width / this.bucketSize) + 1;
+	this.numOfRows = (int) (height / this.bucketSize) + 1;
+
+	// counting sort of the nodes by bucket
+	int[] nodeBucket = new int[n];
+	this.bucketStart = new int[numOfCols * numOfRows + 1];
+	for (int i = 0; i < n; i++) {
+	    nodeBucket[i] = getBucket(xs[i], ys[i]);
+	    bucketStart[nodeBucket[i] + 1]++;
+	}
+	for (int b = 0; b < numOfCols * numOfRows; b++) {
+	    bucketStart[b + 1] += bucketStart[b];
+	}
+	int[] next = new int[numOfCols * numOfRows];
+	System.arraycopy(bucketStart, 0, next, 0, next.length);
+	this.bucketNodes = new int[n];
+	this.bucketXs = new double[n];
+	this.bucketYs = new double[n];
+	for (int i = 0; i < n; i++) {
+	    int pos = next[nodeBucket[i]]++;
+	    bucketNodes[pos] = i;
+	    bucketXs[pos] = xs[i];
+	    bucketYs[pos] = ys[i];
+	}
+    }
+
+    public int size() {
+	return nodes.length;
+    }
+
+    public Node getNode(int index) {
+	return nodes[index];
+    }
+
+    public double getX(int index) {
+	return xs[index];
+    }
+
+    public double getY(int index) {
+	return ys[index];
+    }
+
+    /**
+     * @param node a node in the index
+     * @return the index of the node, or -1 if it is not in the index
+     */
+    public int indexOf(Node node) {
+	return nodesIndices.getOrDefault(node.getId(), -1);
+    }
+
+    /**
+     * @return the index of a node chosen uniformly at random
+     */
+    public int sampleNode(RandomGenerator random) {
+	return random.nextInt(nodes.length);
+    }
+
+    /**
+     * Choose uniformly at random a node within the distance range from the
+     * given node. A few random nodes are tried first (the same draws as
+     * simple rejection sampling), if none of them is in range the nodes in
+     * range are counted using the buckets and one of them is chosen, so the
+     * time is bounded even when only few nodes are in range.
+     * 
+     * @param fromIndex   the index of the node to measure distances from
+     * @param minDistance the minimal distance (inclusive, in meters)
+     * @param maxDistance the maximal distance (inclusive, in meters), non
+     *                    positive for no maximum
+     * @param random      the random stream to sample with
+     * @return the index of the chosen node
+     */
+    public int sampleNodeInRange(int fromIndex, double minDistance,
+	    double maxDistance, RandomGenerator random) {
+	double x = xs[fromIndex];
+	double y = ys[fromIndex];
+	double minSq = minDistance * minDistance;
+	double maxSq = maxDistance > 0 ? maxDistance * maxDistance
+		: Double.POSITIVE_INFINITY;
+	for (int i = 0; i < REJECTION_ATTEMPTS; i++) {
+	    int candidate = random.nextInt(nodes.length);
+	    double distSq = distanceSq(x, y, xs[candidate], ys[candidate]);
+	    if (distSq >= minSq && distSq <= maxSq) {
+		return candidate;
+	    }
+	}
+	int count = visitInRange(x, y, minSq, maxSq, -1);
+	if (count == 0) {
+	    throw new RuntimeException("No node is within " + minDistance
+		    + "-" + (maxDistance > 0 ? maxDistance : "inf")
+		    + " meters from node " + nodes[fromIndex].getId());
+	}
+	return visitInRange(x, y, minSq, maxSq, random.nextInt(count));
+    }
+
+    /*
+     * Walks the nodes within the squared distances range from (x, y) bucket
+     * by bucket. If target is negative returns the number of nodes in range,
+     * otherwise returns the index of the target-th node in range.
+     */
+    private int visitInRange(double x, double y, double minSq, double maxSq,
+	    int target) {
+	int fromCol = 0, toCol = numOfCols - 1;
+	int fromRow = 0, toRow = numOfRows - 1;
+	if (maxSq != Double.POSITIVE_INFINITY) {
+	    double maxDistance = Math.sqrt(maxSq);
+	    fromCol = Math.max(0, getCol(x - maxDistance));
+	    toCol = Math.min(numOfCols - 1, getCol(x + maxDistance));
+	    fromRow = Math.max(0, getRow(y - maxDistance));
+	    toRow = Math.min(numOfRows - 1, getRow(y + maxDistance));
+	}
+	int count = 0;
+	for (int row = fromRow; row <= toRow; row++) {
+	    double cellMinY = minY + row * bucketSize;
+	    double dy = axisDistance(y, cellMinY, cellMinY + bucketSize);
+	    double farY = Math.max(Math.abs(y - cellMinY),
+		    Math.abs(y - cellMinY - bucketSize));
+	    for (int col = fromCol; col <= toCol; col++) {
+		int bucket = row * numOfCols + col;
+		int start = bucketStart[bucket];
+		int end = bucketStart[bucket + 1];
+		if (start == end)
+		    continue;
+		double cellMinX = minX + col * bucketSize;
+		double dx = axisDistance(x, cellMinX, cellMinX + bucketSize);
+		double farX = Math.max(Math.abs(x - cellMinX),
+			Math.abs(x - cellMinX - bucketSize));
+		double nearSq = dx * dx + dy * dy;
+		double farSq = farX * farX + farY * farY;
+		if (farSq < minSq || nearSq > maxSq)
+		    continue;
+		if (nearSq >= minSq && farSq <= maxSq) {
+		    // the whole bucket is in range
+		    if (target >= 0 && target < count + end - start) {
+			return bucketNodes[start + target - count];
+		    }
+		    count += end - start;
+		    continue;
+		}
+		for (int i = start; i < end; i++) {
+		    double distSq = distanceSq(x, y, bucketXs[i], bucketYs[i]);
+		    if (distSq >= minSq && distSq <= maxSq) {
+			if (target == count) {
+			    return bucketNodes[i];
+			}
+			count++;
+		    }
+		}
+	    }
+	}
+	return count;
+    }
+
+    private int getBucket(double x, double y) {
+	int col = Math.min(numOfCols - 1, Math.max(0, getCol(x)));
+	int row = Math.min(numOfRows - 1, Math.max(0, getRow(y)));
+	return row * numOfCols + col;
+    }
+
+    private int getCol(double x) {
+	return (int) Math.floor((x - minX) / bucketSize);
+    }
+
+    private int getRow(double y) {
+	return (int) Math.floor((y - minY) / bucketSize);
+    }
+
+    /*
+     * distance of a value from a [from, to] interval, 0 if it is inside
+     */
+    private static double axisDistance(double value, double from,
+	    double to) {
+	if (value < from)
+	    return from - value;
+	if (value > to)
+	    return value - to;
+	return 0;
+    }
+
+    private static double distanceSq(double x1, double y1, double x2,
+	    double y2) {
+	double dx = x1 - x2;
+	double dy = y1 - y2;
+	return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,218 @@
+package syncity.network;
+
+import java.util.Arrays;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+/**
+ * One-to-many shortest paths (by length) over a network, with the free-flow
+ * time of the paths.
+ *
+ * The network is kept in compressed sparse rows: the links leaving node n
+ * are at linkStart[n] until linkStart[n + 1] in the primitive links arrays,
+ * and the nodes are identified by their index in a {@link NodeSpatialIndex}.
+ * The graph is read-only after construction, so it can be shared between
+ * threads, while the search state is kept in a {@link Workspace} of each
+ * thread.
+ */
+public class ShortestPaths {
+
+    /**
+     * The state of the searches of a single thread, reused between searches
+     * so a search does not allocate
+     */
+    public static class Workspace {
+	private final double[] distances;
+	private final double[] times;
+	// the search a node was reached / settled / a target in
+	private final int[] reached;
+	private final int[] settled;
+	private final int[] target;
+	// binary heap of the reached nodes by distance
+	private final int[] heap;
+	private final int[] heapPosition;
+	private int heapSize;
+	private int search = 0;
+
+	public Workspace(int numOfNodes) {
+	    distances = new double[numOfNodes];
+	    times = new double[numOfNodes];
+	    reached = new int[numOfNodes];
+	    settled = new int[numOfNodes];
+	    target = new int[numOfNodes];
+	    heap = new int[numOfNodes];
+	    heapPosition = new int[numOfNodes];
+	}
+
+	private void push(int node) {
+	    heapPosition[node] = heapSize;
+	    heap[heapSize++] = node;
+	    siftUp(heapPosition[node]);
+	}
+
+	private int pop() {
+	    int top = heap[0];
+	    heap[0] = heap[--heapSize];
+	    heapPosition[heap[0]] = 0;
+	    siftDown(0);
+	    return top;
+	}
+
+	private void siftUp(int position) {
+	    int node = heap[position];
+	    while (position > 0) {
+		int parent = (position - 1) >> 1;
+		if (distances[heap[parent]] <= distances[node])
+		    break;
+		heap[position] = heap[parent];
+		heapPosition[heap[position]] = position;
+		position = parent;
+	    }
+	    heap[position] = node;
+	    heapPosition[node] = position;
+	}
+
+	private void siftDown(int position) {
+	    int node = heap[position];
+	    while (true) {
+		int child = 2 * position + 1;
+		if (child >= heapSize)
+		    break;
+		if (child + 1 < heapSize && distances[heap[child
+			+ 1]] < distances[heap[child]])
+		    child++;
+		if (distances[node] <= distances[heap[child]])
+		    break;
+		heap[position] = heap[child];
+		heapPosition[heap[position]] = position;
+		position = child;
+	    }
+	    heap[position] = node;
+	    heapPosition[node] = position;
+	}
+    }
+
+    private final NodeSpatialIndex nodesIndex;
+    private final int[] linkStart;
+    private final int[] linkTo;
+    private final double[] linkLength; // [m]
+    private final double[] linkTime; // [s]
+
+    /**
+     * @param network    the network to route on
+     * @param nodesIndex the index of the network nodes
+     */
+    public ShortestPaths(Network network, NodeSpatialIndex nodesIndex) {
+	this.nodesIndex = nodesIndex;
+	int numOfNodes = nodesIndex.size();
+	int numOfLinks = network.getLinks().size();
+	int[] from = new int[numOfLinks];
+	int[] to = new int[numOfLinks];
+	double[] length = new double[numOfLinks];
+	double[] time = new double[numOfLinks];
+	int l = 0;
+	for (Link link : network.getLinks().values()) {
+	    from[l] = nodesIndex.indexOf(link.getFromNode());
+	    to[l] = nodesIndex.indexOf(link.getToNode());
+	    length[l] = link.getLength();
+	    time[l] = link.getLength() / link.getFreespeed();
+	    l++;
+	}
+
+	// counting sort of the links by their from node
+	linkStart = new int[numOfNodes + 1];
+	for (int i = 0; i < numOfLinks; i++) {
+	    linkStart[from[i] + 1]++;
+	}
+	for (int n = 0; n < numOfNodes; n++) {
+	    linkStart[n + 1] += linkStart[n];
+	}
+	int[] next = Arrays.copyOf(linkStart, numOfNodes);
+	linkTo = new int[numOfLinks];
+	linkLength = new double[numOfLinks];
+	linkTime = new double[numOfLinks];
+	for (int i = 0; i < numOfLinks; i++) {
+	    int pos = next[from[i]]++;
+	    linkTo[pos] = to[i];
+	    linkLength[pos] = length[i];
+	    linkTime[pos] = time[i];
+	}
+    }
+
+    public NodeSpatialIndex getNodesIndex() {
+	return nodesIndex;
+    }
+
+    /**
+     * @return a new workspace for searches on this network
+     */
+    public Workspace createWorkspace() {
+	return new Workspace(nodesIndex.size());
+    }
+
+    /**
+     * Find the shortest paths from an origin to several targets, the search
+     * stops once all the targets are settled.
+     *
+     * @param origin    the index of the origin node
+     * @param targets   the indices of the target nodes, targets[first] until
+     *                  targets[last]
+     * @param first     the first target
+     * @param last      the end of the targets (exclusive)
+     * @param distances filled with the length of the path to each target
+     *                  [m], distances[first] until distances[last], infinity
+     *                  if the target is unreachable
+     * @param times     filled with the free-flow time of the path to each
+     *                  target [s], as distances
+     * @param workspace the workspace of the calling thread
+     */
+    public void route(int origin, int[] targets, int first, int last,
+	    double[] distances, double[] times, Workspace workspace) {
+	Workspace w = workspace;
+	int search = ++w.search;
+	int remaining = 0;
+	for (int i = first; i < last; i++) {
+	    if (w.target[targets[i]] != search) {
+		w.target[targets[i]] = search;
+		remaining++;
+	    }
+	}
+
+	w.heapSize = 0;
+	w.distances[origin] = 0;
+	w.times[origin] = 0;
+	w.reached[origin] = search;
+	w.push(origin);
+	while (w.heapSize > 0 && remaining > 0) {
+	    int node = w.pop();
+	    w.settled[node] = search;
+	    if (w.target[node] == search) {
+		remaining--;
+	    }
+	    for (int l = linkStart[node]; l < linkStart[node + 1]; l++) {
+		int to = linkTo[l];
+		if (w.settled[to] == search)
+		    continue;
+		double distance = w.distances[node] + linkLength[l];
+		if (w.reached[to] != search) {
+		    w.reached[to] = search;
+		    w.distances[to] = distance;
+		    w.times[to] = w.times[node] + linkTime[l];
+		    w.push(to);
+		} else if (distance < w.distances[to]) {
+		    w.distances[to] = distance;
+		    w.times[to] = w.times[node] + linkTime[l];
+		    w.siftUp(w.heapPosition[to]);
+		}
+	    }
+	}
+
+	for (int i = first; i < last; i++) {
+	    int node = targets[i];
+	    boolean found = w.settled[node] == search;
+	    distances[i] = found ? w.distances[node] : Double.POSITIVE_INFINITY;
+	    times[i] = found ? w.times[node] : Double.POSITIVE_INFINITY;
+	}
+    }
+}
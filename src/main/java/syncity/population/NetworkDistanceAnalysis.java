@@ -0,0 +1,259 @@
+package syncity.population;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.network.ShortestPaths;
+import utils.ArtifactCache;
+import utils.MatsimUtils;
+
+/**
+ * The network distance (the length of the shortest path) and free-flow time
+ * of the home-work trips of a population, for validating the demand of a
+ * network before simulating it. The euclidean distance of
+ * {@link PopulationAnalysis} underestimates the trips on grid and line
+ * networks.
+ *
+ * The home-work pairs of the agents are deduplicated to distinct
+ * origin-destination pairs, sorted by origin, and a one-to-many Dijkstra is
+ * run from each distinct origin in parallel. The results of the pairs are
+ * kept in sorted primitive arrays, so analyzing another population of the
+ * same network (e.g. a sample) routes only the new pairs. The search
+ * workspaces are kept in a pool of the analysis, so they are reused by the
+ * threads of every call.
+ */
+public class NetworkDistanceAnalysis {
+
+    public static final String DISTANCE_INFO_SUFFIX = ".NetworkDistanceInfo.csv";
+    public static final String TIME_INFO_SUFFIX = ".FreeFlowTimeInfo.csv";
+
+    private final PopulationAnalysis populationAnalysis;
+    private final ShortestPaths shortestPaths;
+    // the idle workspaces, a routing task takes one and returns it
+    private final Queue<ShortestPaths.Workspace> workspaces = new ConcurrentLinkedQueue<>();
+
+    // the routed pairs sorted by key, with their distances and times
+    private long[] cachedPairs = new long[0];
+    private double[] cachedDistances = new double[0];
+    private double[] cachedTimes = new double[0];
+
+    public NetworkDistanceAnalysis(Network network) {
+	this.populationAnalysis = new PopulationAnalysis(network);
+	this.shortestPaths = new ShortestPaths(network,
+		populationAnalysis.getNodesIndex());
+    }
+
+    /**
+     * Find the network distances and free-flow times of the home-work trips
+     * of agents.
+     *
+     * @param homes        the home nodes indices of the agents, in the nodes
+     *                     index of the analysis
+     * @param works        the work nodes indices of the agents
+     * @param distances    filled with the distances of the agents [m], -1 for
+     *                     agents without a home or a work node, or without a
+     *                     path between them
+     * @param times        filled with the free-flow times of the agents [s],
+     *                     -1 as the distances
+     * @param numOfThreads the number of threads to route with
+     */
+    public synchronized void getDistances(int[] homes, int[] works,
+	    int[] distances, int[] times, int numOfThreads) {
+	long[] pairs = IntStream.range(0, homes.length)
+		.filter(i -> homes[i] >= 0 && works[i] >= 0)
+		.mapToLong(i -> pairKey(homes[i], works[i])).sorted()
+		.distinct().toArray();
+	long[] missing = Arrays.stream(pairs)
+		.filter(pair -> Arrays.binarySearch(cachedPairs, pair) < 0)
+		.toArray();
+	long startTime = System.nanoTime();
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    route(pool, missing);
+	    pool.submit(() -> IntStream.range(0, homes.length).parallel()
+		    .forEach(i -> {
+			int pair = homes[i] < 0 || works[i] < 0 ? -1
+				: Arrays.binarySearch(cachedPairs,
+					pairKey(homes[i], works[i]));
+			boolean found = pair >= 0
+				&& cachedDistances[pair] < Double.POSITIVE_INFINITY;
+			distances[i] = found ? (int) cachedDistances[pair] : -1;
+			times[i] = found ? (int) cachedTimes[pair] : -1;
+		    })).get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Failed to route the OD pairs", e);
+	} finally {
+	    pool.shutdown();
+	}
+	System.out.println(String.format(
+		"Routed %d new of %d distinct OD pairs of %d agents in %.2f s",
+		missing.length, pairs.length, homes.length,
+		(System.nanoTime() - startTime) / 1e9));
+    }
+
+    /**
+     * write the network distance and free-flow time distributions of a
+     * population, in the format of the distance info of
+     * {@link PopulationStats}
+     *
+     * @param population         the population to analyze
+     * @param populationFileName the file name of the population, the csv
+     *                           names are the population name with
+     *                           {@value #DISTANCE_INFO_SUFFIX} and
+     *                           {@value #TIME_INFO_SUFFIX}
+     * @param numOfThreads       the number of threads to analyze with
+     * @throws IOException
+     */
+    public void writeDistanceInfo(Population population,
+	    Path populationFileName, int numOfThreads) throws IOException {
+	Person[] persons = population.getPersons().values()
+		.toArray(new Person[0]);
+	int[] homes = new int[persons.length];
+	int[] works = new int[persons.length];
+	populationAnalysis.getHomeWorkNodes(persons, homes, works,
+		numOfThreads);
+	int[] distances = new int[persons.length];
+	int[] times = new int[persons.length];
+	getDistances(homes, works, distances, times, numOfThreads);
+	long skipped = IntStream.of(distances).filter(d -> d < 0).count();
+	if (skipped > 0) {
+	    System.out.println("Skipped " + skipped
+		    + " agents without a home, a work or a path between them");
+	}
+	PopulationStats.writeHistogram(
+		Paths.get(populationFileName + DISTANCE_INFO_SUFFIX),
+		"Distance", histogram(distances));
+	PopulationStats.writeHistogram(
+		Paths.get(populationFileName + TIME_INFO_SUFFIX), "Time",
+		histogram(times));
+    }
+
+    /**
+     * Writes the network distance and free-flow time distributions of a
+     * population file to a directory through the default
+     * {@link ArtifactCache}, they are computed only if they are not cached
+     * for the content of the network and the population.
+     *
+     * @param networkFile    the network of the population
+     * @param populationFile the population to analyze
+     * @param outDir         the directory to link the csv files into
+     * @return the absolute path of the distance csv
+     * @throws IOException
+     */
+    public static String writeCachedDistanceInfo(String networkFile,
+	    String populationFile, String outDir) throws IOException {
+	Path population = Paths.get(populationFile);
+	String key = ArtifactCache.key("networkDistanceInfo",
+		Paths.get(networkFile), population);
+	Path cached = ArtifactCache.getDefault().getOrCreate(key, dir -> {
+	    Path out = dir.resolve(population.getFileName());
+	    new NetworkDistanceAnalysis(MatsimUtils.readNetwork(networkFile))
+		    .writeDistanceInfo(
+			    MatsimUtils.readPopulation(populationFile), out,
+			    Runtime.getRuntime().availableProcessors());
+	    return Paths.get(out + DISTANCE_INFO_SUFFIX);
+	});
+	return ArtifactCache.linkToDir(cached, Paths.get(outDir))
+		.toAbsolutePath().toString();
+    }
+
+    /*
+     * route the pairs (sorted by key, so by origin) from each distinct origin
+     * in parallel, and add them to the cached pairs
+     */
+    private void route(ForkJoinPool pool, long[] pairs)
+	    throws InterruptedException, ExecutionException {
+	int[] origins = IntStream.range(0, pairs.length)
+		.filter(i -> i == 0 || origin(pairs[i]) != origin(pairs[i - 1]))
+		.toArray();
+	int[] targets = Arrays.stream(pairs).mapToInt(pair -> (int) pair)
+		.toArray();
+	double[] distances = new double[pairs.length];
+	double[] times = new double[pairs.length];
+	pool.submit(() -> IntStream.range(0, origins.length).parallel()
+		.forEach(o -> {
+		    int first = origins[o];
+		    int last = o + 1 < origins.length ? origins[o + 1]
+			    : pairs.length;
+		    ShortestPaths.Workspace workspace = workspaces.poll();
+		    if (workspace == null) {
+			workspace = shortestPaths.createWorkspace();
+		    }
+		    shortestPaths.route(origin(pairs[first]), targets, first,
+			    last, distances, times, workspace);
+		    workspaces.offer(workspace);
+		})).get();
+
+	// merge the sorted routed pairs into the sorted cached pairs
+	int size = cachedPairs.length + pairs.length;
+	long[] mergedPairs = new long[size];
+	double[] mergedDistances = new double[size];
+	double[] mergedTimes = new double[size];
+	for (int i = 0, c = 0, r = 0; i < size; i++) {
+	    if (r == pairs.length
+		    || (c < cachedPairs.length && cachedPairs[c] < pairs[r])) {
+		mergedPairs[i] = cachedPairs[c];
+		mergedDistances[i] = cachedDistances[c];
+		mergedTimes[i] = cachedTimes[c++];
+	    } else {
+		mergedPairs[i] = pairs[r];
+		mergedDistances[i] = distances[r];
+		mergedTimes[i] = times[r++];
+	    }
+	}
+	cachedPairs = mergedPairs;
+	cachedDistances = mergedDistances;
+	cachedTimes = mergedTimes;
+    }
+
+    private static long pairKey(int origin, int destination) {
+	return ((long) origin << 32) | destination;
+    }
+
+    private static int origin(long pair) {
+	return (int) (pair >>> 32);
+    }
+
+    /*
+     * the counts of the non negative values, indexed by the value
+     */
+    private static long[] histogram(int[] values) {
+	long[] counts = new long[IntStream.of(values).max().orElse(0) + 1];
+	for (int value : values) {
+	    if (value >= 0) {
+		counts[value]++;
+	    }
+	}
+	return counts;
+    }
+
+    /**
+     * Write the network distance and free-flow time distributions of a
+     * population file next to it.
+     *
+     * @param args the network file and the population file
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 2) {
+	    System.out.println(
+		    "Usage: NetworkDistanceAnalysis <network> <population>");
+	    return;
+	}
+	Path population = Paths.get(args[1]).toAbsolutePath();
+	String out = writeCachedDistanceInfo(args[0], args[1],
+		population.getParent().toString());
+	System.out.println("Wrote network distances to:  " + out);
+    }
+}
@@ -26,11 +26,11 @@ public class PersonAnalysis {
             if (!(planElement instanceof Activity))
         	continue;
             Activity act = (Activity) planElement;
-            if (act.getType() == PersonFactory.HOME_ACTIVITY_TYPE) {
+            if (PersonFactory.HOME_ACTIVITY_TYPE.equals(act.getType())) {
         	homeNode = network.getLinks().get(act.getLinkId())
         		.getToNode();
             }
-            if (act.getType() == PersonFactory.WORK_ACTIVITY_TYPE) {
+            if (PersonFactory.WORK_ACTIVITY_TYPE.equals(act.getType())) {
         	workNode = network.getLinks().get(act.getLinkId())
         		.getToNode();
             }
@@ -52,10 +52,10 @@ public class PersonAnalysis {
             if (!(planElement instanceof Activity))
         	continue;
             Activity act = (Activity) planElement;
-            if (act.getType() == PersonFactory.HOME_ACTIVITY_TYPE && home == null) {
+            if (PersonFactory.HOME_ACTIVITY_TYPE.equals(act.getType()) && home == null) {
         	home = act;
             }
-            if (act.getType() == PersonFactory.WORK_ACTIVITY_TYPE) {
+            if (PersonFactory.WORK_ACTIVITY_TYPE.equals(act.getType())) {
         	work= act;
             }
         }
@@ -65,7 +65,8 @@ public class PersonAnalysis {
     
     /*
      * Return the home-work distance of a person
-     * useful for analysis of the population 
+     * useful for analysis of the population, see PopulationAnalysis for
+     * whole populations
      */
     public static double getHomeWorkDistance(Person person, Network network) {
 	Pair<Node, Node> pair = getPersonHomeWork(person, network);
@@ -1,5 +1,6 @@
 package syncity.population;
 
+import org.apache.commons.math3.random.RandomGenerator;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Node;
@@ -54,6 +55,20 @@ public class PersonFactory {
 	return person;
     }
 
+    /*
+     * The same as above but with a given person id and random stream,
+     * so persons can be created in parallel
+     */
+    public Person createPersonWithStandardPlan(Id<Person> personId,
+	    Node homeNode, Node workNode, PopulationFactory populationFactory,
+	    RandomGenerator random) {
+	Person person = populationFactory.createPerson(personId);
+	Plan plan = createPlanToPerson(homeNode, workNode, populationFactory,
+		random);
+	person.addPlan(plan);
+	return person;
+    }
+
     /**
      * A method to prevent double use of ids
      * 
@@ -78,11 +93,19 @@ public class PersonFactory {
      */
     protected Plan createPlanToPerson(Node homeNode, Node WorkNode,
 	    Population population) {
-	PopulationFactory populationFactory = population.getFactory();
-	double leaveHome = BasicUtils.randInWindow(leaveHomeTime,
+	return createPlanToPerson(homeNode, WorkNode, population.getFactory(),
+		BasicUtils.getUniformRandomGenerator());
+    }
+
+    /*
+     * The same as above but draws the times from the given random stream
+     */
+    protected Plan createPlanToPerson(Node homeNode, Node WorkNode,
+	    PopulationFactory populationFactory, RandomGenerator random) {
+	double leaveHome = BasicUtils.randInWindow(random, leaveHomeTime,
 		leaveHomeWindowSize);
-	double leaveWork = leaveHome
-		+ BasicUtils.randInWindow(workdayLength, workdayWindowSize);
+	double leaveWork = leaveHome + BasicUtils.randInWindow(random,
+		workdayLength, workdayWindowSize);
 	Plan plan = createHomeWorkHomePlan(populationFactory, homeNode,
 		leaveHome, WorkNode, leaveWork);
 	return plan;
@@ -0,0 +1,238 @@
+package syncity.population;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.network.NodeSpatialIndex;
+import utils.MatsimUtils;
+
+/**
+ * Batch analysis of the home and work nodes of a whole population, the
+ * counterpart of {@link PersonAnalysis} for large populations.
+ *
+ * The network is indexed once: the to-node index of every link is kept by
+ * the link id (the only lookup done per activity), and the nodes coordinates
+ * are kept in the primitive arrays of a {@link NodeSpatialIndex}. The home
+ * and work nodes of the persons are then found in parallel into int arrays,
+ * and the statistics are collected by each thread into its own
+ * {@link PopulationStats}, without allocating per person.
+ */
+public class PopulationAnalysis {
+
+    private final NodeSpatialIndex nodesIndex;
+    private final Map<Id<Link>, Integer> linkToNode;
+
+    public PopulationAnalysis(Network network) {
+	this(network, new NodeSpatialIndex(
+		network.getNodes().values().toArray(new Node[0])));
+    }
+
+    /**
+     * @param network    the network of the population
+     * @param nodesIndex the index of the network nodes, the nodes are
+     *                   identified by their index in it
+     */
+    public PopulationAnalysis(Network network, NodeSpatialIndex nodesIndex) {
+	this.nodesIndex = nodesIndex;
+	this.linkToNode = new HashMap<>(network.getLinks().size() * 4 / 3 + 1);
+	for (Link link : network.getLinks().values()) {
+	    linkToNode.put(link.getId(), nodesIndex.indexOf(link.getToNode()));
+	}
+    }
+
+    public NodeSpatialIndex getNodesIndex() {
+	return nodesIndex;
+    }
+
+    /**
+     * find the home and work nodes of the persons, as
+     * {@link PersonAnalysis#getPersonHomeWork(Person, Network)} does
+     *
+     * @param persons      the persons to analyze
+     * @param homes        filled with the home nodes indices, -1 for persons
+     *                     without a home activity
+     * @param works        filled with the work nodes indices, -1 for persons
+     *                     without a work activity
+     * @param numOfThreads the number of threads to analyze with
+     */
+    public void getHomeWorkNodes(Person[] persons, int[] homes, int[] works,
+	    int numOfThreads) {
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    pool.submit(() -> IntStream.range(0, persons.length).parallel()
+		    .forEach(i -> {
+			homes[i] = -1;
+			works[i] = -1;
+			List<PlanElement> planElements = persons[i]
+				.getSelectedPlan().getPlanElements();
+			for (int j = 0; j < planElements.size(); j++) {
+			    if (!(planElements.get(j) instanceof Activity))
+				continue;
+			    Activity act = (Activity) planElements.get(j);
+			    if (PersonFactory.HOME_ACTIVITY_TYPE
+				    .equals(act.getType())) {
+				homes[i] = getNode(act.getLinkId());
+			    } else if (PersonFactory.WORK_ACTIVITY_TYPE
+				    .equals(act.getType())) {
+				works[i] = getNode(act.getLinkId());
+			    }
+			}
+		    })).get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Failed to analyze the population", e);
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /**
+     * @param home the index of a home node
+     * @param work the index of a work node
+     * @return the euclidean distance of the nodes [m], as
+     *         {@link MatsimUtils#nodesDistance(Node, Node)}
+     */
+    public int getDistance(int home, int work) {
+	double dx = nodesIndex.getX(home) - nodesIndex.getX(work);
+	double dy = nodesIndex.getY(home) - nodesIndex.getY(work);
+	return (int) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * The home-work distance distribution and the home/work nodes counts of
+     * a population, the persons without a home or a work activity are
+     * skipped.
+     *
+     * @param population   the population to analyze
+     * @param numOfThreads the number of threads to analyze with
+     * @return the statistics of the population
+     */
+    public PopulationStats getStats(Population population, int numOfThreads) {
+	Person[] persons = population.getPersons().values()
+		.toArray(new Person[0]);
+	int[] homes = new int[persons.length];
+	int[] works = new int[persons.length];
+	getHomeWorkNodes(persons, homes, works, numOfThreads);
+	int[] distances = new int[persons.length];
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    pool.submit(() -> IntStream.range(0, persons.length).parallel()
+		    .forEach(i -> distances[i] = homes[i] < 0 || works[i] < 0
+			    ? -1
+			    : getDistance(homes[i], works[i])))
+		    .get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Failed to analyze the population", e);
+	} finally {
+	    pool.shutdown();
+	}
+	return getStats(homes, works, distances, numOfThreads);
+    }
+
+    /**
+     * Collect the statistics of agents whose nodes and distances are known,
+     * each thread collects a range of the agents.
+     *
+     * @param homes        the home nodes indices of the agents
+     * @param works        the work nodes indices of the agents
+     * @param distances    the home-work distances of the agents [m], agents
+     *                     with a negative distance are skipped
+     * @param numOfThreads the number of threads to collect with
+     * @return the statistics of the agents
+     */
+    public PopulationStats getStats(int[] homes, int[] works, int[] distances,
+	    int numOfThreads) {
+	int numOfAgents = homes.length;
+	int numOfRanges = Math.max(1, Math.min(numOfThreads, numOfAgents));
+	PopulationStats[] rangeStats = new PopulationStats[numOfRanges];
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    pool.submit(() -> IntStream.range(0, numOfRanges).parallel()
+		    .forEach(r -> {
+			PopulationStats stats = new PopulationStats(
+				nodesIndex);
+			int last = (int) ((long) numOfAgents * (r + 1)
+				/ numOfRanges);
+			for (int i = (int) ((long) numOfAgents * r
+				/ numOfRanges); i < last; i++) {
+			    if (distances[i] >= 0) {
+				stats.addAgent(homes[i], works[i],
+					distances[i]);
+			    }
+			}
+			rangeStats[r] = stats;
+		    })).get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Failed to collect the statistics", e);
+	} finally {
+	    pool.shutdown();
+	}
+	PopulationStats stats = rangeStats[0];
+	for (int r = 1; r < numOfRanges; r++) {
+	    stats.add(rangeStats[r]);
+	}
+	reportSkipped(IntStream.of(distances).filter(d -> d < 0).count());
+	return stats;
+    }
+
+    /**
+     * print the number of agents left out of the statistics
+     * @param skipped the number of agents without a home or a work activity
+     */
+    static void reportSkipped(long skipped) {
+	if (skipped > 0) {
+	    System.out.println("Skipped " + skipped
+		    + " agents without a home or a work activity");
+	}
+    }
+
+    private int getNode(Id<Link> linkId) {
+	Integer node = linkToNode.get(linkId);
+	if (node == null) {
+	    throw new IllegalArgumentException(
+		    "The link " + linkId + " is not in the network");
+	}
+	return node;
+    }
+
+    /**
+     * Write the distance and nodes statistics of a population file.
+     *
+     * @param args the network file, the population file and optionally the
+     *             number of threads
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 2) {
+	    System.out.println(
+		    "Usage: PopulationAnalysis <network> <population> [threads]");
+	    return;
+	}
+	int numOfThreads = args.length > 2 ? Integer.parseInt(args[2])
+		: Runtime.getRuntime().availableProcessors();
+	Network network = MatsimUtils.readNetwork(args[0]);
+	Population population = MatsimUtils.readPopulation(args[1]);
+	long startTime = System.nanoTime();
+	PopulationStats stats = new PopulationAnalysis(network)
+		.getStats(population, numOfThreads);
+	System.out.println(String.format("Analyzed %d persons in %.2f s",
+		population.getPersons().size(),
+		(System.nanoTime() - startTime) / 1e9));
+	stats.writeDistanceInfo(Paths.get(args[1]));
+	stats.writeNodesStats(Paths.get(args[1]));
+    }
+}
@@ -0,0 +1,283 @@
+package syncity.population;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.groups.PlansConfigGroup;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+
+import com.opencsv.CSVReader;
+
+import utils.BinaryFiles;
+
+/**
+ * A compact columnar binary format for the demand of {@link PopulationCSV}
+ * (from link, to link, departure time and return time per person), much
+ * faster to load than the csv.
+ *
+ * The file holds a header, the link ids dictionary (a string table), the
+ * from and to links as indices into the dictionary, and the departure and
+ * return times as floats (in seconds from the beginning of the day, whole
+ * seconds are kept exactly). As in the csv the persons ids are not kept,
+ * the persons are numbered by their order. The reader memory-maps the file,
+ * so it is limited to 2GB (about 100M persons).
+ */
+public class PopulationBinary {
+
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x53434442; // "SCDB"
+    private static final int VERSION = 1;
+
+    /**
+     * write the home-work-home demand of a population in the binary format
+     *
+     * @param pop      the population to write
+     * @param filename the file to write to
+     * @return the filename
+     * @throws IOException
+     */
+    public static String writePopulationBinary(Population pop,
+	    String filename) throws IOException {
+	int numOfPersons = pop.getPersons().size();
+	Demand demand = new Demand(numOfPersons);
+	for (Person person : pop.getPersons().values()) {
+	    Pair<Activity, Activity> homeWork = PersonAnalysis
+		    .getPersonHomeWorkActivities(person);
+	    demand.add(homeWork.getLeft().getLinkId().toString(),
+		    homeWork.getRight().getLinkId().toString(),
+		    homeWork.getLeft().getEndTime(),
+		    homeWork.getRight().getEndTime());
+	}
+	demand.write(filename);
+	return filename;
+    }
+
+    /**
+     * convert a population csv to the binary format, row by row without
+     * building a population
+     *
+     * @param csvFilename the population csv
+     * @param filename    the file to write to
+     * @return the filename
+     * @throws IOException
+     */
+    public static String convertPopulationCSV(String csvFilename,
+	    String filename) throws IOException {
+	Demand demand = new Demand(1024);
+	CSVReader reader = new CSVReader(new FileReader(csvFilename));
+	try {
+	    String[] line;
+	    while ((line = reader.readNext()) != null) {
+		if (Arrays.equals(line, PopulationCSV.HEADER)) {
+		    continue;
+		}
+		demand.add(line[PopulationCSV.FROM_LINK_ID],
+			line[PopulationCSV.TO_LINK_ID],
+			PopulationCSV.parseTimeString(
+				line[PopulationCSV.DEP_TIME_ID]),
+			PopulationCSV.parseTimeString(
+				line[PopulationCSV.RETURN_TIME_ID]));
+	    }
+	} finally {
+	    reader.close();
+	}
+	demand.write(filename);
+	return filename;
+    }
+
+    /**
+     * read a demand file into a new population, the plans are created by
+     * {@link PersonFactory#createHomeWorkHomePlan}
+     *
+     * @param filename the binary demand file
+     * @return a new population
+     * @throws IOException
+     */
+    public static Population readPopulationBinary(String filename)
+	    throws IOException {
+	Population pop = PopulationUtils
+		.createPopulation(new PlansConfigGroup(), null);
+	DemandReader reader = new DemandReader(filename, pop.getFactory());
+	for (int i = 0; i < reader.numOfPersons; i++) {
+	    Person person = PersonFactory.createPerson(pop);
+	    person.addPlan(reader.createPlan(i));
+	    pop.addPerson(person);
+	}
+	return pop;
+    }
+
+    /**
+     * write the demand of a binary file straight to a plans xml, every person
+     * is written as soon as it is created, without building a population
+     *
+     * @param filename      the binary demand file
+     * @param plansFilename the plans xml to write
+     * @return the number of persons written
+     * @throws IOException
+     */
+    public static int streamPopulationBinary(String filename,
+	    String plansFilename) throws IOException {
+	PopulationFactory factory = PopulationUtils
+		.createPopulation(new PlansConfigGroup(), null).getFactory();
+	DemandReader reader = new DemandReader(filename, factory);
+	StreamingPopulationWriter writer = new StreamingPopulationWriter();
+	writer.startStreaming(plansFilename);
+	try {
+	    for (int i = 0; i < reader.numOfPersons; i++) {
+		Person person = factory.createPerson(Id.createPersonId(i));
+		person.addPlan(reader.createPlan(i));
+		writer.run(person);
+	    }
+	} finally {
+	    writer.closeStreaming();
+	}
+	return reader.numOfPersons;
+    }
+
+    /**
+     * The demand columns while they are collected, the link ids are added to
+     * the dictionary by the order they first appear
+     */
+    private static class Demand {
+	private final Map<String, Integer> linkIndices = new LinkedHashMap<>();
+	private int[] from;
+	private int[] to;
+	private float[] depTimes;
+	private float[] returnTimes;
+	private int size = 0;
+
+	Demand(int capacity) {
+	    from = new int[capacity];
+	    to = new int[capacity];
+	    depTimes = new float[capacity];
+	    returnTimes = new float[capacity];
+	}
+
+	void add(String fromLink, String toLink, double depTime,
+		double returnTime) {
+	    if (size == from.length) {
+		int capacity = Math.max(16, size * 2);
+		from = Arrays.copyOf(from, capacity);
+		to = Arrays.copyOf(to, capacity);
+		depTimes = Arrays.copyOf(depTimes, capacity);
+		returnTimes = Arrays.copyOf(returnTimes, capacity);
+	    }
+	    from[size] = linkIndex(fromLink);
+	    to[size] = linkIndex(toLink);
+	    depTimes[size] = (float) depTime;
+	    returnTimes[size] = (float) returnTime;
+	    size++;
+	}
+
+	private int linkIndex(String linkId) {
+	    Integer index = linkIndices.get(linkId);
+	    if (index == null) {
+		index = linkIndices.size();
+		linkIndices.put(linkId, index);
+	    }
+	    return index;
+	}
+
+	void write(String filename) throws IOException {
+	    DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(new FileOutputStream(filename),
+			    1 << 16));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(size);
+		BinaryFiles.writeStringTable(out,
+			linkIndices.keySet().toArray(new String[0]));
+		for (int i = 0; i < size; i++) {
+		    out.writeInt(from[i]);
+		}
+		for (int i = 0; i < size; i++) {
+		    out.writeInt(to[i]);
+		}
+		for (int i = 0; i < size; i++) {
+		    out.writeFloat(depTimes[i]);
+		}
+		for (int i = 0; i < size; i++) {
+		    out.writeFloat(returnTimes[i]);
+		}
+	    } finally {
+		out.close();
+	    }
+	}
+    }
+
+    /**
+     * Reads the columns of a demand file in place, from the mapped file
+     */
+    private static class DemandReader {
+	final int numOfPersons;
+	private final PopulationFactory factory;
+	private final PersonFactory personFactory = new PersonFactory();
+	private final Id<Link>[] links;
+	private final IntBuffer from;
+	private final IntBuffer to;
+	private final FloatBuffer depTimes;
+	private final FloatBuffer returnTimes;
+
+	@SuppressWarnings("unchecked")
+	DemandReader(String filename, PopulationFactory factory)
+		throws IOException {
+	    this.factory = factory;
+	    ByteBuffer buffer = BinaryFiles.map(filename);
+	    if (buffer.getInt() != MAGIC) {
+		throw new IOException(
+			filename + " is not a binary demand file");
+	    }
+	    int version = buffer.getInt();
+	    if (version != VERSION) {
+		throw new IOException("Unsupported binary demand version "
+			+ version + " in " + filename);
+	    }
+	    numOfPersons = buffer.getInt();
+	    String[] linkIds = BinaryFiles.readStringTable(buffer);
+	    links = new Id[linkIds.length];
+	    for (int i = 0; i < linkIds.length; i++) {
+		links[i] = Id.createLinkId(linkIds[i]);
+	    }
+	    from = column(buffer).asIntBuffer();
+	    to = column(buffer).asIntBuffer();
+	    depTimes = column(buffer).asFloatBuffer();
+	    returnTimes = column(buffer).asFloatBuffer();
+	}
+
+	/*
+	 * the next column of numOfPersons 4 bytes values
+	 */
+	private ByteBuffer column(ByteBuffer buffer) {
+	    ByteBuffer column = buffer.slice();
+	    column.limit(numOfPersons * Integer.BYTES);
+	    buffer.position(buffer.position() + numOfPersons * Integer.BYTES);
+	    return column;
+	}
+
+	Plan createPlan(int person) {
+	    return personFactory.createHomeWorkHomePlan(factory,
+		    depTimes.get(person), returnTimes.get(person),
+		    links[from.get(person)], links[to.get(person)]);
+	}
+    }
+}
@@ -1,11 +1,25 @@
 package syncity.population;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.population.Activity;
@@ -16,9 +30,12 @@ import org.matsim.api.core.v01.population.PopulationFactory;
 import org.matsim.api.core.v01.population.PopulationWriter;
 import org.matsim.core.config.groups.PlansConfigGroup;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationWriter;
 
 import com.opencsv.CSVReader;
-import com.opencsv.CSVWriter;;
+import com.opencsv.CSVWriter;
+
+import utils.RandomStreams;
 
 public class PopulationCSV {
     
@@ -27,6 +44,12 @@ public class PopulationCSV {
     protected static int TO_LINK_ID = 1;
     protected static int DEP_TIME_ID = 2;
     protected static int RETURN_TIME_ID = 3;
+    // name of the random stream used to sample the csv rows
+    private static final String SAMPLING_RANDOM_COMPONENT = "csvSampling";
+    // the plans factory of line2Plan, the plans do not depend on its state
+    private static final PersonFactory PLAN_FACTORY = new PersonFactory();
+    // number of persons formatted together when exporting in parallel
+    private static final int EXPORT_CHUNK_SIZE = 1 << 15;
 
     /*
      * Creates a population from the csv.
@@ -50,6 +73,63 @@ public class PopulationCSV {
 	return pop;
     }
     
+    /*
+     * Converts a population csv straight to a plans xml, without building the
+     * population: each row is turned into a person and written right away,
+     * so the memory does not depend on the size of the csv.
+     * returns the number of persons written
+     */
+    public static int convertPopulationCSV(String csvFilename,
+	    String plansFilename) throws IOException {
+	return convertPopulationCSV(csvFilename, plansFilename, 1,
+		Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /*
+     * The same as above but keeps only a fraction of the rows (chosen at
+     * random) and only the rows departing in [fromTime, toTime) (in seconds
+     * from the beginning of the day). The persons ids are their order in the
+     * written file, as in readPopulationCSV.
+     */
+    public static int convertPopulationCSV(String csvFilename,
+	    String plansFilename, double fraction, double fromTime,
+	    double toTime) throws IOException {
+	CSVReader reader = new CSVReader(new FileReader(csvFilename));
+	PopulationFactory factory = PopulationUtils
+		.createPopulation(new PlansConfigGroup(), null).getFactory();
+	RandomGenerator random = RandomStreams.create(SAMPLING_RANDOM_COMPONENT,
+		0);
+	StreamingPopulationWriter writer = new StreamingPopulationWriter();
+	writer.startStreaming(plansFilename);
+	int numOfPersons = 0;
+	try {
+	    String[] line;
+	    while ((line = reader.readNext()) != null) {
+		if (Arrays.equals(line, HEADER)) {
+		    continue;
+		}
+		// draw for every row, so the sample does not depend on the window
+		if (random.nextDouble() >= fraction) {
+		    continue;
+		}
+		double depTime = parseTimeString(line[DEP_TIME_ID]);
+		if (depTime < fromTime || depTime >= toTime) {
+		    continue;
+		}
+		Person person = factory
+			.createPerson(Id.createPersonId(numOfPersons++));
+		person.addPlan(line2Plan(line, factory));
+		writer.run(person);
+	    }
+	} finally {
+	    writer.closeStreaming();
+	    reader.close();
+	}
+	System.out.println("Wrote " + numOfPersons + " persons from "
+		+ csvFilename + " to " + plansFilename);
+	return numOfPersons;
+    }
+
     /*
      * write population to a csv, with columns for home link, work link, departure time and return time
      */
@@ -69,6 +149,101 @@ public class PopulationCSV {
 	writer.close();
 	return filename;
     }
+
+    /*
+     * The same as above but the rows are formatted in parallel chunks of
+     * persons, and the chunks are written in order through a FileChannel,
+     * a few chunks at a time so the memory does not grow with the population.
+     * With gzip every chunk is compressed on its own, the concatenated gzip
+     * members are read as a single gzip file.
+     * The content is the same as the one written by the CSVWriter above.
+     */
+    public static String writePopulationCSV(Population pop, String filename,
+	    int numOfThreads, boolean gzip) throws IOException {
+	Person[] persons = pop.getPersons().values().toArray(new Person[0]);
+	int numOfChunks = Math.max(1,
+		(persons.length + EXPORT_CHUNK_SIZE - 1) / EXPORT_CHUNK_SIZE);
+	int batchSize = 2 * numOfThreads;
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try (FileChannel channel = FileChannel.open(Paths.get(filename),
+		StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		StandardOpenOption.TRUNCATE_EXISTING)) {
+	    for (int first = 0; first < numOfChunks; first += batchSize) {
+		int firstChunk = first;
+		int lastChunk = Math.min(numOfChunks, first + batchSize);
+		List<byte[]> chunks = pool.submit(() -> IntStream
+			.range(firstChunk, lastChunk).parallel()
+			.mapToObj(chunk -> formatChunk(persons, chunk, gzip))
+			.collect(Collectors.toList())).get();
+		for (byte[] chunk : chunks) {
+		    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		    while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		    }
+		}
+	    }
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Failed to write " + filename, e);
+	} finally {
+	    pool.shutdown();
+	}
+	return filename;
+    }
+
+    /*
+     * format the rows of the persons in a chunk (and the header in the first
+     * chunk) as the bytes to write
+     */
+    private static byte[] formatChunk(Person[] persons, int chunk,
+	    boolean gzip) {
+	int first = chunk * EXPORT_CHUNK_SIZE;
+	int last = Math.min(persons.length, first + EXPORT_CHUNK_SIZE);
+	StringBuilder rows = new StringBuilder(64 * (last - first + 1));
+	if (chunk == 0) {
+	    for (int i = 0; i < HEADER.length; i++) {
+		appendField(rows, HEADER[i], i == HEADER.length - 1);
+	    }
+	}
+	for (int i = first; i < last; i++) {
+	    Pair<Activity, Activity> homeWork = PersonAnalysis
+		    .getPersonHomeWorkActivities(persons[i]);
+	    appendField(rows, homeWork.getLeft().getLinkId().toString(), false);
+	    appendField(rows, homeWork.getRight().getLinkId().toString(), false);
+	    rows.append('"');
+	    appendTime(rows, homeWork.getLeft().getEndTime());
+	    rows.append("\",\"");
+	    appendTime(rows, homeWork.getRight().getEndTime());
+	    rows.append("\"\n");
+	}
+	byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+	if (!gzip) {
+	    return bytes;
+	}
+	ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+		bytes.length / 4);
+	try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+	    out.write(bytes);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return compressed.toByteArray();
+    }
+
+    /*
+     * append a quoted field, as CSVWriter does (quotes are doubled)
+     */
+    private static void appendField(StringBuilder row, String field,
+	    boolean last) {
+	row.append('"');
+	for (int i = 0; i < field.length(); i++) {
+	    char c = field.charAt(i);
+	    if (c == '"') {
+		row.append('"');
+	    }
+	    row.append(c);
+	}
+	row.append(last ? "\"\n" : "\",");
+    }
     
     /*
      * Turns a csv line into a person plan that can be attached to a person 
@@ -79,7 +254,7 @@ public class PopulationCSV {
 	double depTime = parseTimeString(csvLine[DEP_TIME_ID]),
 	       returnTime = parseTimeString(csvLine[RETURN_TIME_ID]);
 	
-	return new PersonFactory().createHomeWorkHomePlan(factory, depTime, returnTime,
+	return PLAN_FACTORY.createHomeWorkHomePlan(factory, depTime, returnTime,
 		fromLink, toLink);
     }
     
@@ -108,13 +283,34 @@ public class PopulationCSV {
      * format seconds as human readable time "hh:mm:ss" format
      */
     public static String createTimeString(double time) {
+	StringBuilder timeString = new StringBuilder(8);
+	appendTime(timeString, time);
+	return timeString.toString();
+    }
+
+    /*
+     * append the time as "hh:mm:ss", the same as String.format with %02d
+     * (for negative times as well) but without parsing a format
+     */
+    private static void appendTime(StringBuilder out, double time) {
 	int timeInt = (int)time;
 	int ss = timeInt % 60;
 	timeInt /= 60;
 	int mm = timeInt % 60;
 	timeInt /= 60;
 	int hh = timeInt;
-	return String.format("%02d:%02d:%02d", hh, mm, ss);
+	appendTwoDigits(out, hh);
+	out.append(':');
+	appendTwoDigits(out, mm);
+	out.append(':');
+	appendTwoDigits(out, ss);
+    }
+
+    private static void appendTwoDigits(StringBuilder out, int value) {
+	if (value >= 0 && value < 10) {
+	    out.append('0');
+	}
+	out.append(value);
     }
     
     public static void main(String[] args) throws IOException {
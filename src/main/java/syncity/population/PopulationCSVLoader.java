@@ -0,0 +1,443 @@
+package syncity.population;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.groups.PlansConfigGroup;
+import org.matsim.core.population.PopulationUtils;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * A bulk loader for population csv files, in the format read by
+ * {@link PopulationCSV#readPopulationCSV(String)}.
+ *
+ * The file is split into chunks at line boundaries, each chunk is read
+ * through NIO (memory mapped when the file is large) and parsed by its own
+ * task directly from the bytes, so the only objects created per row are the
+ * link ids and the plan. The persons are created in the order of the rows
+ * (as in readPopulationCSV), after all the chunks are parsed.
+ *
+ * Rows that can not be parsed do not stop the loading, they are collected as
+ * {@link MalformedRow}s with their line number and the reason. Quoted fields
+ * are supported (with "" as an escaped quote) but a quoted field can not
+ * span several lines.
+ */
+public class PopulationCSVLoader {
+
+    // files smaller than this are read to the heap instead of being mapped
+    private static final long MAP_THRESHOLD = 1 << 20;
+    // the size of the chunks the file is split into [bytes]
+    private static final long CHUNK_SIZE = 1 << 23;
+    // the number of malformed rows printed when loading
+    private static final int MAX_PRINTED_ROWS = 10;
+    private static final int NUM_OF_FIELDS = PopulationCSV.HEADER.length;
+
+    /**
+     * A row of the csv that could not be turned into a person
+     */
+    public static class MalformedRow {
+	// the line of the row in the file, starting from 1
+	public final long lineNumber;
+	public final String reason;
+	public final String line;
+
+	public MalformedRow(long lineNumber, String reason, String line) {
+	    this.lineNumber = lineNumber;
+	    this.reason = reason;
+	    this.line = line;
+	}
+
+	@Override
+	public String toString() {
+	    return "line " + lineNumber + ": " + reason + " [" + line + "]";
+	}
+    }
+
+    /**
+     * The loaded population and the rows that were skipped
+     */
+    public static class LoadResult {
+	public final Population population;
+	public final List<MalformedRow> malformedRows;
+
+	public LoadResult(Population population,
+		List<MalformedRow> malformedRows) {
+	    this.population = population;
+	    this.malformedRows = malformedRows;
+	}
+
+	/**
+	 * write the malformed rows to a csv with the line number, the reason
+	 * and the content of each row
+	 * @param filename the csv to write
+	 * @throws IOException
+	 */
+	public void writeMalformedRows(String filename) throws IOException {
+	    CSVWriter writer = new CSVWriter(new FileWriter(filename));
+	    writer.writeNext(new String[] { "lineNumber", "reason", "line" });
+	    for (MalformedRow row : malformedRows) {
+		writer.writeNext(new String[] { String.valueOf(row.lineNumber),
+			row.reason, row.line });
+	    }
+	    writer.close();
+	}
+    }
+
+    /**
+     * load a population csv using all the available processors
+     * @param filename the csv to load
+     * @return the population and the malformed rows
+     * @throws IOException
+     */
+    public static LoadResult load(String filename) throws IOException {
+	return load(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * load a population csv, parsing the chunks of the file in parallel
+     * @param filename     the csv to load
+     * @param numOfThreads the number of threads to parse with
+     * @return the population and the malformed rows
+     * @throws IOException
+     */
+    public static LoadResult load(String filename, int numOfThreads)
+	    throws IOException {
+	long startTime = System.nanoTime();
+	Population pop = PopulationUtils
+		.createPopulation(new PlansConfigGroup(), null);
+	PopulationFactory factory = pop.getFactory();
+	List<ChunkParser> chunks;
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try (FileChannel channel = FileChannel.open(Paths.get(filename),
+		StandardOpenOption.READ)) {
+	    long[] bounds = findChunksBounds(channel);
+	    chunks = pool.submit(() -> IntStream.range(0, bounds.length - 1)
+		    .parallel()
+		    .mapToObj(i -> parseChunk(channel, bounds[i],
+			    bounds[i + 1], factory))
+		    .collect(Collectors.toList())).get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Failed to parse " + filename, e);
+	} finally {
+	    pool.shutdown();
+	}
+
+	List<MalformedRow> malformedRows = new ArrayList<>();
+	long firstLine = 1;
+	for (ChunkParser chunk : chunks) {
+	    for (Plan plan : chunk.plans) {
+		Person person = PersonFactory.createPerson(pop);
+		person.addPlan(plan);
+		pop.addPerson(person);
+	    }
+	    for (MalformedRow row : chunk.malformedRows) {
+		malformedRows.add(new MalformedRow(firstLine + row.lineNumber,
+			row.reason, row.line));
+	    }
+	    firstLine += chunk.numOfLines;
+	}
+
+	System.out.println(String.format(
+		"Read %d persons from %s in %.2f s, %d malformed rows",
+		pop.getPersons().size(), filename,
+		(System.nanoTime() - startTime) / 1e9, malformedRows.size()));
+	malformedRows.stream().limit(MAX_PRINTED_ROWS)
+		.forEach(row -> System.out.println("Malformed " + row));
+	return new LoadResult(pop, malformedRows);
+    }
+
+    /*
+     * split the file to chunks of about CHUNK_SIZE bytes, every chunk starts
+     * at the beginning of a line. returns the chunks bounds, the first is 0
+     * and the last is the size of the file
+     */
+    private static long[] findChunksBounds(FileChannel channel)
+	    throws IOException {
+	long size = channel.size();
+	List<Long> bounds = new ArrayList<>();
+	bounds.add(0L);
+	ByteBuffer probe = ByteBuffer.allocate(4096);
+	long position = CHUNK_SIZE;
+	while (position < size) {
+	    long lineStart = nextLineStart(channel, position, probe);
+	    if (lineStart >= size) {
+		break;
+	    }
+	    bounds.add(lineStart);
+	    position = lineStart + CHUNK_SIZE;
+	}
+	bounds.add(size);
+	return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /*
+     * the position after the first new line at or after position, or the
+     * size of the file if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long position,
+	    ByteBuffer probe) throws IOException {
+	while (true) {
+	    probe.clear();
+	    int read = channel.read(probe, position);
+	    if (read <= 0) {
+		return channel.size();
+	    }
+	    for (int i = 0; i < read; i++) {
+		if (probe.get(i) == '\n') {
+		    return position + i + 1;
+		}
+	    }
+	    position += read;
+	}
+    }
+
+    /*
+     * read the bytes [start, end) of the file and parse them
+     */
+    private static ChunkParser parseChunk(FileChannel channel, long start,
+	    long end, PopulationFactory factory) {
+	try {
+	    ByteBuffer buffer;
+	    if (channel.size() >= MAP_THRESHOLD) {
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+			end - start);
+	    } else {
+		buffer = ByteBuffer.allocate((int) (end - start));
+		while (buffer.hasRemaining() && channel.read(buffer,
+			start + buffer.position()) >= 0) {
+		}
+		buffer.flip();
+	    }
+	    ChunkParser parser = new ChunkParser(buffer, factory);
+	    parser.parse();
+	    return parser;
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * Parses the rows of a single chunk into plans. The line numbers of the
+     * malformed rows are relative to the chunk (starting from 0).
+     */
+    private static class ChunkParser {
+
+	private static final byte[][] HEADER_BYTES = new byte[NUM_OF_FIELDS][];
+	static {
+	    for (int i = 0; i < NUM_OF_FIELDS; i++) {
+		HEADER_BYTES[i] = PopulationCSV.HEADER[i]
+			.getBytes(StandardCharsets.UTF_8);
+	    }
+	}
+
+	private final ByteBuffer buffer;
+	private final PopulationFactory factory;
+	private final PersonFactory personFactory = new PersonFactory();
+	final List<Plan> plans = new ArrayList<>();
+	final List<MalformedRow> malformedRows = new ArrayList<>();
+	long numOfLines = 0;
+
+	// the unquoted content of the current line fields
+	private byte[] fieldBytes = new byte[256];
+	private final int[] fieldStarts = new int[NUM_OF_FIELDS];
+	private final int[] fieldEnds = new int[NUM_OF_FIELDS];
+	private int lineStart;
+	private int lineEnd;
+
+	ChunkParser(ByteBuffer buffer, PopulationFactory factory) {
+	    this.buffer = buffer;
+	    this.factory = factory;
+	}
+
+	void parse() {
+	    int limit = buffer.limit();
+	    int next = 0;
+	    while (next < limit) {
+		lineStart = next;
+		int newLine = lineStart;
+		while (newLine < limit && buffer.get(newLine) != '\n') {
+		    newLine++;
+		}
+		lineEnd = newLine;
+		if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+		    lineEnd--;
+		}
+		parseLine();
+		numOfLines++;
+		next = newLine + 1;
+	    }
+	}
+
+	/*
+	 * turn the current line into a plan, or a malformed row
+	 */
+	private void parseLine() {
+	    if (lineStart == lineEnd) {
+		return;
+	    }
+	    int numOfFields = splitLine();
+	    if (numOfFields < 0) {
+		malformed("unclosed quote");
+		return;
+	    }
+	    if (numOfFields < NUM_OF_FIELDS) {
+		malformed("expected " + NUM_OF_FIELDS + " fields but found "
+			+ numOfFields);
+		return;
+	    }
+	    if (numOfFields == NUM_OF_FIELDS && isHeader()) {
+		return;
+	    }
+	    int from = PopulationCSV.FROM_LINK_ID, to = PopulationCSV.TO_LINK_ID;
+	    if (fieldStarts[from] == fieldEnds[from]
+		    || fieldStarts[to] == fieldEnds[to]) {
+		malformed("empty link id");
+		return;
+	    }
+	    double depTime = parseTime(PopulationCSV.DEP_TIME_ID);
+	    if (Double.isNaN(depTime)) {
+		malformed("malformed departure time \""
+			+ fieldString(PopulationCSV.DEP_TIME_ID) + "\"");
+		return;
+	    }
+	    double returnTime = parseTime(PopulationCSV.RETURN_TIME_ID);
+	    if (Double.isNaN(returnTime)) {
+		malformed("malformed return time \""
+			+ fieldString(PopulationCSV.RETURN_TIME_ID) + "\"");
+		return;
+	    }
+	    Id<Link> fromLink = Id.createLinkId(fieldString(from)),
+		     toLink = Id.createLinkId(fieldString(to));
+	    plans.add(personFactory.createHomeWorkHomePlan(factory, depTime,
+		    returnTime, fromLink, toLink));
+	}
+
+	/*
+	 * split the current line to fields, the unquoted bytes of the fields
+	 * are copied to fieldBytes and the bounds of the first NUM_OF_FIELDS
+	 * fields are kept. returns the number of fields in the line, or -1 if
+	 * a quote is not closed
+	 */
+	private int splitLine() {
+	    if (fieldBytes.length < lineEnd - lineStart) {
+		fieldBytes = new byte[2 * (lineEnd - lineStart)];
+	    }
+	    int numOfFields = 0;
+	    int out = 0;
+	    int i = lineStart;
+	    while (true) {
+		int fieldStart = out;
+		if (i < lineEnd && buffer.get(i) == '"') {
+		    i++;
+		    while (true) {
+			if (i >= lineEnd) {
+			    return -1;
+			}
+			byte b = buffer.get(i++);
+			if (b != '"') {
+			    fieldBytes[out++] = b;
+			} else if (i < lineEnd && buffer.get(i) == '"') {
+			    fieldBytes[out++] = '"';
+			    i++;
+			} else {
+			    break;
+			}
+		    }
+		}
+		while (i < lineEnd && buffer.get(i) != ',') {
+		    fieldBytes[out++] = buffer.get(i++);
+		}
+		if (numOfFields < NUM_OF_FIELDS) {
+		    fieldStarts[numOfFields] = fieldStart;
+		    fieldEnds[numOfFields] = out;
+		}
+		numOfFields++;
+		if (i >= lineEnd) {
+		    return numOfFields;
+		}
+		i++; // skip the comma
+	    }
+	}
+
+	private boolean isHeader() {
+	    for (int field = 0; field < NUM_OF_FIELDS; field++) {
+		byte[] header = HEADER_BYTES[field];
+		if (fieldEnds[field] - fieldStarts[field] != header.length) {
+		    return false;
+		}
+		for (int i = 0; i < header.length; i++) {
+		    if (fieldBytes[fieldStarts[field] + i] != header[i]) {
+			return false;
+		    }
+		}
+	    }
+	    return true;
+	}
+
+	/*
+	 * parse time like "HH:mm:ss" or "HH:mm" into seconds from the beginning
+	 * of the day, without creating strings. returns NaN if malformed
+	 */
+	private double parseTime(int field) {
+	    long seconds = 0;
+	    int numOfParts = 0;
+	    int value = 0;
+	    int numOfDigits = 0;
+	    for (int i = fieldStarts[field]; i <= fieldEnds[field]; i++) {
+		if (i == fieldEnds[field] || fieldBytes[i] == ':') {
+		    if (numOfDigits == 0) {
+			return Double.NaN;
+		    }
+		    seconds = seconds * 60 + value;
+		    numOfParts++;
+		    value = 0;
+		    numOfDigits = 0;
+		} else if (fieldBytes[i] >= '0' && fieldBytes[i] <= '9'
+			&& numOfDigits < 9) {
+		    value = value * 10 + (fieldBytes[i] - '0');
+		    numOfDigits++;
+		} else {
+		    return Double.NaN;
+		}
+	    }
+	    if (numOfParts == 2) {
+		return seconds * 60;
+	    }
+	    return numOfParts == 3 ? seconds : Double.NaN;
+	}
+
+	private String fieldString(int field) {
+	    return new String(fieldBytes, fieldStarts[field],
+		    fieldEnds[field] - fieldStarts[field],
+		    StandardCharsets.UTF_8);
+	}
+
+	private void malformed(String reason) {
+	    byte[] line = new byte[lineEnd - lineStart];
+	    for (int i = 0; i < line.length; i++) {
+		line[i] = buffer.get(lineStart + i);
+	    }
+	    malformedRows.add(new MalformedRow(numOfLines, reason,
+		    new String(line, StandardCharsets.UTF_8)));
+	}
+    }
+}
@@ -0,0 +1,169 @@
+package syncity.population;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.matsim.api.core.v01.network.Node;
+
+import syncity.network.NodeSpatialIndex;
+import utils.ArtifactCache;
+import utils.MatsimUtils;
+
+/**
+ * The home-work distance distribution and the home/work nodes counts of a
+ * population. The statistics are collected agent by agent, so they can be
+ * filled while the population is generated, without keeping it in memory.
+ * 
+ * The counts are kept in primitive arrays, the nodes counts are indexed by
+ * the nodes indices in a {@link NodeSpatialIndex} and the distances counts by
+ * the distance in meters, the csv files are only rendered when written.
+ */
+public class PopulationStats {
+
+    protected NodeSpatialIndex nodesIndex;
+    protected long[] distanceCounts = new long[1024];
+    protected int[] homeCounts;
+    protected int[] workCounts;
+
+    /**
+     * @param nodesIndex the index of the nodes the agents are spread over
+     */
+    public PopulationStats(NodeSpatialIndex nodesIndex) {
+	this.nodesIndex = nodesIndex;
+	homeCounts = new int[nodesIndex.size()];
+	workCounts = new int[nodesIndex.size()];
+    }
+
+    /**
+     * add an agent to the statistics
+     * @param home the index of the agent's home node
+     * @param work the index of the agent's work node
+     */
+    public void addAgent(int home, int work) {
+	addAgent(home, work, (int) MatsimUtils.nodesDistance(
+		nodesIndex.getNode(home), nodesIndex.getNode(work)));
+    }
+
+    /**
+     * add an agent to the statistics
+     * @param home     the index of the agent's home node
+     * @param work     the index of the agent's work node
+     * @param distance the home-work distance [m]
+     */
+    public void addAgent(int home, int work, int distance) {
+	if (distance >= distanceCounts.length) {
+	    distanceCounts = Arrays.copyOf(distanceCounts,
+		    Math.max(distance + 1, distanceCounts.length * 2));
+	}
+	distanceCounts[distance]++;
+	homeCounts[home]++;
+	workCounts[work]++;
+    }
+
+    /**
+     * add an agent to the statistics
+     * @param home the agent's home node
+     * @param work the agent's work node
+     * @throws IllegalArgumentException if a node is not in the nodes index
+     */
+    public void addAgent(Node home, Node work) {
+	addAgent(indexOf(home), indexOf(work));
+    }
+
+    private int indexOf(Node node) {
+	int index = nodesIndex.indexOf(node);
+	if (index < 0) {
+	    throw new IllegalArgumentException(
+		    "The node " + node.getId() + " is not in the nodes index");
+	}
+	return index;
+    }
+
+    /**
+     * add the agents of other statistics (of the same nodes index) to these
+     * @param other the statistics to add
+     */
+    public void add(PopulationStats other) {
+	if (other.distanceCounts.length > distanceCounts.length) {
+	    distanceCounts = Arrays.copyOf(distanceCounts,
+		    other.distanceCounts.length);
+	}
+	for (int i = 0; i < other.distanceCounts.length; i++) {
+	    distanceCounts[i] += other.distanceCounts[i];
+	}
+	for (int i = 0; i < homeCounts.length; i++) {
+	    homeCounts[i] += other.homeCounts[i];
+	    workCounts[i] += other.workCounts[i];
+	}
+    }
+
+    /**
+     * write a file describing the Origin-Destination distance distribution
+     * @param populationFileName the file name of the relevant population
+     * @throws IOException
+     */
+    public void writeDistanceInfo(Path populationFileName)
+	    throws IOException {
+	writeHistogram(Paths.get(populationFileName + ".DistanceInfo.csv"),
+		"Distance", distanceCounts);
+    }
+
+    /**
+     * write a histogram in the format of the distance info, a line for every
+     * value with a positive count
+     * @param out       the csv to write
+     * @param valueName the name of the values column
+     * @param counts    the counts of the values, indexed by the value
+     * @throws IOException
+     */
+    public static void writeHistogram(Path out, String valueName,
+	    long[] counts) throws IOException {
+	ArtifactCache.unlinkOutput(out);
+	try (BufferedWriter writer = Files.newBufferedWriter(out)) {
+	    writer.write(valueName + ";Count\n");
+	    for (int value = 0; value < counts.length; value++) {
+		if (counts[value] > 0) {
+		    writer.write("\"" + value + "\";" + counts[value] + "\n");
+		}
+	    }
+	}
+	System.out.println("Wrote " + valueName + " histogram to:  " + out);
+    }
+
+    /**
+     * write a file describing the agents in node distribution
+     * @param populationFileName the file name of the relevant population
+     * @throws IOException
+     */
+    public void writeNodesStats(Path populationFileName) throws IOException {
+	Path out = Paths.get(populationFileName + ".NodesStats.csv");
+	ArtifactCache.unlinkOutput(out);
+	try (BufferedWriter writer = Files.newBufferedWriter(out)) {
+	    writer.write("NodeId;Type;Count\n");
+	    for (int i = 0; i < homeCounts.length; i++) {
+		writeNodeStat(writer, i, RandomPopulationGenerator.HOME_NODE_ID,
+			homeCounts[i]);
+		writeNodeStat(writer, i, RandomPopulationGenerator.WORK_NODE_ID,
+			workCounts[i]);
+	    }
+	}
+	System.out.println("Wrote nodes stats to:  " + out);
+    }
+
+    /*
+     * write a single line of the nodes stats, in the format of the node stats
+     * map written by BasicUtils.writeSimpleMap
+     */
+    private void writeNodeStat(BufferedWriter writer, int node, int type,
+	    int count) throws IOException {
+	if (count == 0) {
+	    return;
+	}
+	writer.write("\"" + nodesIndex.getNode(node).getId() + "\";\"" + type
+		+ "\";" + count + "\n");
+    }
+}
@@ -4,25 +4,29 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
-import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.io.StreamingPopulationWriter;
-import org.matsim.core.scenario.ScenarioUtils;
 
+import syncity.network.NodeSpatialIndex;
+import utils.ArtifactCache;
 import utils.BasicUtils;
 import utils.MatsimUtils;
+import utils.RandomStreams;
+import utils.ScenarioContext;
 import utils.Structs.PopulationArguments;
 
 /**
@@ -49,11 +53,22 @@ public class RandomPopulationGenerator {
     public static final int HOME_NODE_ID = 0;
     public static final int WORK_NODE_ID = 1;
 
+    // name of the agents random streams in parallel mode
+    private static final String RANDOM_COMPONENT = "population";
+    // name of the random stream used to sample the population
+    private static final String SAMPLING_RANDOM_COMPONENT = "sampling";
+    // number of agents generated at once when streaming
+    private static final int STREAMING_CHUNK_SIZE = 1 << 14;
+
     protected PopulationArguments popParameters;
     protected PersonFactory personFac;
     protected Network network;
     protected Population population;
-    protected HashMap<String, Integer> nodeAsHomeWork;
+    protected NodeSpatialIndex nodesIndex;
+    // the statistics of the generated agents
+    protected PopulationStats stats;
+    // seed of the agents random streams in parallel mode
+    protected long seed = RandomStreams.getSeed();
 
     public RandomPopulationGenerator(Config config, Network network,
 	    PopulationArguments params) {
@@ -63,12 +78,11 @@ public class RandomPopulationGenerator {
 	popParameters = params;
 	
 	if (network == null) {
-	    network = ScenarioUtils.loadScenario(config).getNetwork();
+	    network = ScenarioContext.INSTANCE.getNetwork(config);
 	} else if (config == null) {
 	    config = ConfigUtils.createConfig();
 	}
 	this.network = network;
-	nodeAsHomeWork = new HashMap<>();
 	population = PopulationUtils.createPopulation(config, network);
 	
 	personFac = new PersonFactory(popParameters);
@@ -92,10 +106,121 @@ public class RandomPopulationGenerator {
 	this(null, network, params);
     }
 
+    /**
+     * Writes the population of the given parameters to a directory through
+     * the default {@link ArtifactCache}. The population is generated only if
+     * it is not cached, in parallel so it depends only on the network, the
+     * parameters and the seed.
+     * 
+     * @param networkFile the network to spread the population over
+     * @param params      the population parameters
+     * @param outDir      the directory to link the population files into
+     * @return the absolute path of the population file
+     * @throws IOException
+     */
+    public static String writeCachedPopulation(String networkFile,
+	    PopulationArguments params, String outDir) throws IOException {
+	long seed = RandomStreams.getSeed();
+	String key = ArtifactCache.key("population", Paths.get(networkFile),
+		params, seed);
+	Path cached = ArtifactCache.getDefault().getOrCreate(key, dir -> {
+	    RandomPopulationGenerator popGen = createSeeded(networkFile,
+		    params, seed);
+	    return Paths.get(popGen.writePopulation(dir.toString()));
+	});
+	return ArtifactCache.linkToDir(cached, Paths.get(outDir))
+		.toAbsolutePath().toString();
+    }
+
+    /**
+     * The same as {@link #writeCachedPopulation} but for the nested samples
+     * of {@link #writePopulationSamples}, every sample is cached on its own
+     * and the population is generated only if one of them is missing.
+     * 
+     * @param networkFile the network to spread the population over
+     * @param params      the population parameters
+     * @param fractions   the fractions of the agents in each sample
+     * @param outDir      the directory to link the samples files into
+     * @return the absolute paths of the samples, in the order of fractions
+     * @throws IOException
+     */
+    public static String[] writeCachedPopulationSamples(String networkFile,
+	    PopulationArguments params, float[] fractions, String outDir)
+	    throws IOException {
+	ArtifactCache cache = ArtifactCache.getDefault();
+	long seed = RandomStreams.getSeed();
+	Path network = Paths.get(networkFile);
+	String[] keys = new String[fractions.length];
+	Path[] cached = new Path[fractions.length];
+	boolean missing = false;
+	for (int i = 0; i < fractions.length; i++) {
+	    keys[i] = ArtifactCache.key("populationSample", network, params,
+		    seed, fractions[i]);
+	    cached[i] = cache.lookup(keys[i]);
+	    missing |= cached[i] == null;
+	}
+	if (missing) {
+	    Path samplesDir = cache.createTempDir();
+	    try {
+		RandomPopulationGenerator popGen = createSeeded(networkFile,
+			params, seed);
+		String[] samples = popGen.writePopulationSamples(
+			samplesDir.toString(), fractions);
+		for (int i = 0; i < fractions.length; i++) {
+		    if (cached[i] == null) {
+			cached[i] = storeSample(cache, keys[i],
+				Paths.get(samples[i]));
+		    }
+		}
+	    } finally {
+		ArtifactCache.deleteDirectory(samplesDir);
+	    }
+	}
+	String[] paths = new String[fractions.length];
+	for (int i = 0; i < fractions.length; i++) {
+	    paths[i] = ArtifactCache.linkToDir(cached[i], Paths.get(outDir))
+		    .toAbsolutePath().toString();
+	}
+	return paths;
+    }
+
+    /*
+     * move a sample and its statistics files to the cache
+     */
+    private static Path storeSample(ArtifactCache cache, String key,
+	    Path sample) throws IOException {
+	Path dir = cache.createTempDir();
+	String name = sample.getFileName().toString();
+	try (Stream<Path> files = Files.list(sample.getParent())) {
+	    for (Path file : (Iterable<Path>) files.filter(
+		    f -> f.getFileName().toString().startsWith(name))::iterator) {
+		Files.move(file, dir.resolve(file.getFileName()));
+	    }
+	}
+	return cache.store(key, dir, dir.resolve(name));
+    }
+
+    /*
+     * a generator of the population of the parameters, populated with the
+     * given seed
+     */
+    private static RandomPopulationGenerator createSeeded(String networkFile,
+	    PopulationArguments params, long seed) {
+	RandomPopulationGenerator popGen = new RandomPopulationGenerator(
+		ScenarioContext.INSTANCE.getNetwork(networkFile), params);
+	popGen.setSeed(seed);
+	popGen.populateNodes(Runtime.getRuntime().availableProcessors());
+	return popGen;
+    }
+
     public Population getPopulation() {
 	return this.population;
     }
 
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
     /**
      * Writes the population to a file in the given path, if path is folder the
      * default name for the population file would be "Population-(popSize)-k1.xml"
@@ -125,14 +250,128 @@ public class RandomPopulationGenerator {
 	writer.startStreaming(out.toString());
 	population.getPersons().values().forEach(writer::run);
 	writer.closeStreaming();
-	writeDistanceInfo(out);
-	writeNodesStats(out);
+	getStats().writeDistanceInfo(out);
+	getStats().writeNodesStats(out);
+	return out.toAbsolutePath().toString();
+    }
+
+    /**
+     * Writes several samples of the population in a single pass over the
+     * persons. The samples are nested: every person draws a single random
+     * number and is written to each sample whose fraction is larger than
+     * that number, so e.g. the 1% sample is a subset of the 5% sample. The
+     * distance and nodes statistics of each sample are collected in the same
+     * pass (writePopulation writes the statistics of the whole population).
+     * 
+     * @param outPath   the directory to write the samples to, the samples
+     *                  names would be "Population-(popSize)-k(fraction).xml"
+     * @param fractions the fractions of the agents in each sample
+     * @return the absolute paths of the samples, in the order of fractions
+     * @throws IOException
+     */
+    public String[] writePopulationSamples(String outPath, float[] fractions)
+	    throws IOException {
+	Files.createDirectories(Paths.get(outPath));
+	Path[] outs = new Path[fractions.length];
+	StreamingPopulationWriter[] writers = new StreamingPopulationWriter[fractions.length];
+	PopulationStats[] stats = new PopulationStats[fractions.length];
+	for (int i = 0; i < fractions.length; i++) {
+	    outs[i] = createOutDir(outPath, fractions[i]);
+	    writers[i] = new StreamingPopulationWriter();
+	    writers[i].startStreaming(outs[i].toString());
+	    stats[i] = new PopulationStats(getNodesIndex());
+	}
+	Person[] persons = population.getPersons().values()
+		.toArray(new Person[0]);
+	int[] homes = new int[persons.length];
+	int[] works = new int[persons.length];
+	new PopulationAnalysis(network, getNodesIndex()).getHomeWorkNodes(
+		persons, homes, works, Runtime.getRuntime().availableProcessors());
+	RandomGenerator random = RandomStreams.create(seed,
+		SAMPLING_RANDOM_COMPONENT, 0);
+	long skipped = 0;
+	try {
+	    for (int p = 0; p < persons.length; p++) {
+		if (homes[p] < 0 || works[p] < 0) {
+		    skipped++;
+		}
+		double draw = random.nextDouble();
+		for (int i = 0; i < fractions.length; i++) {
+		    if (draw >= fractions[i])
+			continue;
+		    writers[i].run(persons[p]);
+		    // persons without a home or a work are not in the stats
+		    if (homes[p] < 0 || works[p] < 0)
+			continue;
+		    stats[i].addAgent(homes[p], works[p]);
+		}
+	    }
+	} finally {
+	    for (StreamingPopulationWriter writer : writers) {
+		writer.closeStreaming();
+	    }
+	}
+	PopulationAnalysis.reportSkipped(skipped);
+	String[] paths = new String[fractions.length];
+	for (int i = 0; i < fractions.length; i++) {
+	    stats[i].writeDistanceInfo(outs[i]);
+	    stats[i].writeNodesStats(outs[i]);
+	    paths[i] = outs[i].toAbsolutePath().toString();
+	}
+	return paths;
+    }
+
+    /**
+     * Generates the population and streams it directly to a file, without
+     * keeping it in memory. The agents are generated in parallel chunks, as
+     * in {@link #populateNodes(int)} (starting from an empty population), and
+     * each chunk is written and added to the distance and nodes statistics
+     * before the next one is generated, so the memory depends on the network
+     * size and not on the population size. If path is folder the default
+     * name for the population file would be "Population-(popSize)-k1.0.xml"
+     * 
+     * @param outPath      the path to write the population xml to
+     * @param numOfThreads the number of threads to generate with
+     * @return the absolute path of the created file
+     * @throws IOException
+     */
+    public String streamPopulation(String outPath, int numOfThreads)
+	    throws IOException {
+	Path out = createOutDir(outPath, 1);
+	NodeSpatialIndex nodesIndex = getNodesIndex();
+	int popSize = popParameters.popSize;
+	int chunkSize = Math.max(1, Math.min(popSize, STREAMING_CHUNK_SIZE));
+	Person[] persons = new Person[chunkSize];
+	int[] homes = new int[chunkSize];
+	int[] works = new int[chunkSize];
+	PopulationStats stats = new PopulationStats(nodesIndex);
+
+	StreamingPopulationWriter writer = new StreamingPopulationWriter();
+	writer.startStreaming(out.toString());
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    for (int first = 0; first < popSize; first += chunkSize) {
+		int size = Math.min(chunkSize, popSize - first);
+		createAgents(pool, first, size, 0, persons, homes, works);
+		for (int i = 0; i < size; i++) {
+		    writer.run(persons[i]);
+		    stats.addAgent(homes[i], works[i]);
+		    persons[i] = null;
+		}
+	    }
+	} finally {
+	    pool.shutdown();
+	    writer.closeStreaming();
+	}
+	stats.writeDistanceInfo(out);
+	stats.writeNodesStats(out);
 	return out.toAbsolutePath().toString();
     }
 
     /**
      * Creates the missing directories in the hierarchy of the out put file
-     * returns the path for the output file
+     * returns the path for the output file, an existing file is removed (it
+     * may be linked out of the cache)
      *  
      * @param outPath filename or an existing directory
      * @param fraction fraction of the population to be documented in filename
@@ -151,86 +390,158 @@ public class RandomPopulationGenerator {
 	    // create output folder if necessary
 	    Files.createDirectories(outputFolder);
 	}
+	ArtifactCache.unlinkOutput(out);
 	return out;
     }
 
+    private String getTitle() {
+	return String.format("Population-%d", this.popParameters.popSize);
+    }
+
     /**
-     * write a file describing the Origin-Destination distance distribution
-     * @param populationFileName the file name of the relevant population
-     * @throws IOException
+     * create population with a random spread over the network
      */
-    protected void writeDistanceInfo(Path populationFileName)
-	    throws IOException {
-	Map<Integer, Long> counts = population.getPersons().values().stream() //
-		.collect(Collectors.groupingBy(p -> (int) PersonAnalysis
-			.getHomeWorkDistance(p, network),
-			Collectors.counting()));
-	String out = populationFileName + ".DistanceInfo.csv";
-	BasicUtils.writeSimpleMap(counts, out, //
-		Arrays.asList("Distance", "Count"));
+    public void populateNodes() {
+	NodeSpatialIndex nodesIndex = getNodesIndex();
+	System.out.println(
+		"The number of network nodes is: " + nodesIndex.size());
+	RandomGenerator random = BasicUtils.getUniformRandomGenerator();
+	for (int j = 0; j < popParameters.popSize; j++) {
+	    int home = nodesIndex.sampleNode(random);
+	    int work = chooseWorkNode(home, random);
+	    Person person = personFac.createPersonWithStandardPlan(
+		    nodesIndex.getNode(home), nodesIndex.getNode(work),
+		    this.population);
+	    this.population.addPerson(person);
+	    getStats().addAgent(home, work);
+	}
     }
 
     /**
-     * write a file describing the agents in node distribution
-     * @param populationFileName the file name of the relevant population
-     * @throws IOException
+     * create population with a random spread over the network using several
+     * threads. Each agent draws from its own random stream, derived from the
+     * seed and the agent's index, and the person ids are the agents indices
+     * (following the persons already in the population), so for a given seed
+     * the population is the same no matter how many threads are used.
+     * Notice the agents are different than in the single threaded
+     * {@link #populateNodes()}.
+     * 
+     * @param numOfThreads the number of threads to generate with
      */
-    protected void writeNodesStats(Path populationFileName) throws IOException {
-	String out = populationFileName + ".NodesStats.csv";
-	BasicUtils.writeSimpleMap(nodeAsHomeWork, out, //
-		Arrays.asList("NodeId;Type", "Count"));
+    public void populateNodes(int numOfThreads) {
+	int popSize = popParameters.popSize;
+	System.out.println(
+		"The number of network nodes is: " + getNodesIndex().size());
+	Person[] persons = new Person[popSize];
+	int[] homes = new int[popSize];
+	int[] works = new int[popSize];
+	ForkJoinPool pool = new ForkJoinPool(numOfThreads);
+	try {
+	    createAgents(pool, 0, popSize, population.getPersons().size(),
+		    persons, homes, works);
+	} finally {
+	    pool.shutdown();
+	}
+	for (int i = 0; i < popSize; i++) {
+	    this.population.addPerson(persons[i]);
+	    getStats().addAgent(homes[i], works[i]);
+	}
     }
 
-    private String getTitle() {
-	return String.format("Population-%d", this.popParameters.popSize);
+    /**
+     * create the agents [firstAgent, firstAgent + numOfAgents) in parallel,
+     * each with its own random stream
+     * 
+     * @param pool          the pool to create the agents in
+     * @param firstAgent    the index of the first agent to create
+     * @param numOfAgents   the number of agents to create
+     * @param firstPersonId the person id of agent 0
+     * @param persons       filled with the created persons from index 0
+     * @param homes         filled with the home nodes indices
+     * @param works         filled with the work nodes indices
+     */
+    protected void createAgents(ForkJoinPool pool, long firstAgent,
+	    int numOfAgents, long firstPersonId, Person[] persons,
+	    int[] homes, int[] works) {
+	NodeSpatialIndex nodesIndex = getNodesIndex();
+	PopulationFactory factory = this.population.getFactory();
+	try {
+	    pool.submit(() -> IntStream.range(0, numOfAgents).parallel()
+		    .forEach(i -> {
+			long agent = firstAgent + i;
+			RandomGenerator random = RandomStreams.create(seed,
+				RANDOM_COMPONENT, agent);
+			homes[i] = nodesIndex.sampleNode(random);
+			works[i] = chooseWorkNode(homes[i], random);
+			persons[i] = personFac.createPersonWithStandardPlan(
+				Id.createPersonId(firstPersonId + agent),
+				nodesIndex.getNode(homes[i]),
+				nodesIndex.getNode(works[i]), factory, random);
+		    })).get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException("Parallel population generation failed",
+		    e);
+	}
     }
 
     /**
-     * create population with a random spread over the network
+     * @return the spatial index of the network nodes, created on first use
      */
-    public void populateNodes() {
-	Node[] nodesArray = new Node[this.network.getNodes().size()];
-	this.network.getNodes().values().toArray(nodesArray);
-	System.out.println(
-		"The number of network nodes is: " + nodesArray.length);
-	for (int j = 0; j < popParameters.popSize; j++) {
-	    Node homeNode = BasicUtils.chooseRand(nodesArray);
-	    Node workNode = chooseWorkNode(nodesArray, homeNode);
-	    Person person = personFac.createPersonWithStandardPlan(homeNode, //
-		    workNode, this.population);
-	    this.population.addPerson(person);
-	    updateStatsMaps(person);
+    protected NodeSpatialIndex getNodesIndex() {
+	if (nodesIndex == null) {
+	    nodesIndex = new NodeSpatialIndex(this.network.getNodes().values()
+		    .toArray(new Node[0]));
+	}
+	return nodesIndex;
+    }
+
+    /**
+     * @return the statistics of the generated agents, created on first use
+     */
+    protected PopulationStats getStats() {
+	if (stats == null) {
+	    stats = new PopulationStats(getNodesIndex());
 	}
+	return stats;
+    }
+
+    /**
+     * return the index (in the nodes index) of a node with a distance from
+     * the home node between the minHomeWorkDistance and maxHomeWorkDistance
+     * parameters in PopulationParameters
+     * @param homeIndex the index of the node to calc distance from
+     * @param random the random stream to choose with
+     * @return the index of the chosen node
+     */
+    protected int chooseWorkNode(int homeIndex, RandomGenerator random) {
+	return getNodesIndex().sampleNodeInRange(homeIndex,
+		popParameters.minHomeWorkDistance,
+		popParameters.maxHomeWorkDistance, random);
     }
 
     /**
-     * return a node with a distance from homeNode greater than 
+     * return a network node with a distance from homeNode greater than 
      * minHomeWorkDistance parameter in PopulationParameters
-     * @param nodesArray array of all nodes in the network
      * @param homeNode the node to calc distance from
      * @return a node
      */
-    protected Node chooseWorkNode(Node[] nodesArray, Node homeNode) {
-	return chooseWorkNode(nodesArray, homeNode,
-		popParameters.minHomeWorkDistance);
+    protected Node chooseWorkNode(Node homeNode) {
+	return chooseWorkNode(homeNode, popParameters.minHomeWorkDistance);
     }
 
     /**
-     * return a node with a distance from homeNode greater than 
+     * return a network node with a distance from homeNode greater than 
      * minimumDistance parameter in PopulationParameters
-     * @param nodesArray array of all nodes in the network
      * @param homeNode the node to calc distance from
      * @param minimumDistance the minimalDistance (in meters)
      * @return a node
      */
-    protected Node chooseWorkNode(Node[] nodesArray, Node homeNode,
-	    double minimumDistance) {
-	Node workNode = BasicUtils.chooseRand(nodesArray);
-	while (MatsimUtils.nodesDistance(workNode,
-		homeNode) < minimumDistance) {
-	    workNode = BasicUtils.chooseRand(nodesArray);
-	}
-	return workNode;
+    protected Node chooseWorkNode(Node homeNode, double minimumDistance) {
+	NodeSpatialIndex nodesIndex = getNodesIndex();
+	int work = nodesIndex.sampleNodeInRange(nodesIndex.indexOf(homeNode),
+		minimumDistance, popParameters.maxHomeWorkDistance,
+		BasicUtils.getUniformRandomGenerator());
+	return nodesIndex.getNode(work);
     }
 
     /**
@@ -240,34 +551,6 @@ public class RandomPopulationGenerator {
 	populateNodes();
     }
 
-    /**
-     * update the Node map stats with home and work of {@code person}
-     * @param person the person to use when updating
-     */
-    protected void updateStatsMaps(Person person) {
-	Pair<Node, Node> homeWorkPair = PersonAnalysis.getPersonHomeWork(person, //
-		network);
-	Node home = homeWorkPair.getLeft();
-	Node work = homeWorkPair.getRight();
-	if (home != null && work != null) {
-	    // update home node stats
-	    updateNodeStat(home, HOME_NODE_ID);
-	    // update work node stats
-	    updateNodeStat(work, WORK_NODE_ID);
-	}
-    }
-
-    /**
-     * Update the node stats with the type given (0=home, 1=work) 
-     * @param node
-     * @param type (0=home, 1=work)
-     */
-    protected void updateNodeStat(Node node, int type) {
-	String key = node.getId().toString() + "\";\"" + type;
-	int curValue = nodeAsHomeWork.getOrDefault(key, 0);
-	nodeAsHomeWork.put(key, curValue + 1);
-    }
-
     public static void main(String[] args) throws IOException {
 
 	int popSize = 10000;
@@ -277,13 +560,18 @@ public class RandomPopulationGenerator {
 	}
 
 	if (args[0].toLowerCase().contains("network")) {
-	    Network network = NetworkUtils.readNetwork(args[0]);
+	    Network network = MatsimUtils.readNetwork(args[0]);
 	    popGen = new RandomPopulationGenerator(network, popSize);
 	} else {
 	    Config config = ConfigUtils.loadConfig(args[0]);
 	    popGen = new RandomPopulationGenerator(config, popSize);
 	}
-	popGen.populateNodes();
+	if (args.length > 2) {
+	    // third argument is the number of generation threads
+	    popGen.populateNodes(Integer.parseInt(args[2]));
+	} else {
+	    popGen.populateNodes();
+	}
 
 	popGen.writePopulation("./output/");
 	popGen.writePopulation("./output/", 0.5f);
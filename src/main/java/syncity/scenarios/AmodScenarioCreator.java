@@ -17,7 +17,6 @@ import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ActivityParams;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.core.controler.Controler;
-import org.matsim.core.scenario.ScenarioUtils;
 
 import com.google.inject.Key;
 import com.google.inject.name.Names;
@@ -51,6 +50,8 @@ import ch.ethz.matsim.av.framework.AVModule;
 import ch.ethz.matsim.av.framework.AVQSimModule;
 import utils.AmodeusReferenceFrame;
 import utils.Consts;
+import utils.PhaseMetrics.Phase;
+import utils.ScenarioContext;
 import utils.Structs.*;
 
 public class AmodScenarioCreator extends BaseScenarioCreator {
@@ -167,7 +168,7 @@ public class AmodScenarioCreator extends BaseScenarioCreator {
     }
 
     @Override
-    protected int getNumberOfThreads() {
+    protected int getMaxQSimThreads() {
 	return 4;
     }
     
@@ -179,6 +180,12 @@ public class AmodScenarioCreator extends BaseScenarioCreator {
 
     @Override
     public void prepare() throws Exception {
+	try (Phase phase = metrics.start("prepare")) {
+	    prepareScenario();
+	}
+    }
+
+    private void prepareScenario() throws Exception {
 	setAllConfigParams();
 	writeScenarioFiles();
 	File workingDirectory = getScenarioDir().toFile();
@@ -201,38 +208,71 @@ public class AmodScenarioCreator extends BaseScenarioCreator {
 	AVConfigGroup avConfigGroup = new AVConfigGroup();
 	Config config = ConfigUtils.loadConfig(
 		scenarioOptions.getPreparerConfigName(), avConfigGroup);
-	Scenario scenario = ScenarioUtils.loadScenario(config);
 	GeneratorConfig genConfig = avConfigGroup.getOperatorConfigs().values()
 		.iterator().next().getGeneratorConfig();
 	int numRt = genConfig.getNumberOfVehicles();
 	System.out.println("NumberOfVehicles=" + numRt);
 
+	/**
+	 * the preparers modify the network and population, so they are taken
+	 * out of the scenario context
+	 */
+	ScenarioContext context = ScenarioContext.INSTANCE;
+	Network network;
+	Population population;
+	try (Phase phase = metrics.start("loadScenario")) {
+	    network = context.takeNetwork(config);
+	    population = context.takePopulation(config);
+	}
+
 	/** adaption of MATSim network, e.g., radius cutting */
-	Network network = scenario.getNetwork();
-	network = NetworkPreparer.run(network, scenarioOptions);
+	try (Phase phase = metrics.start("NetworkPreparer")) {
+	    network = NetworkPreparer.run(network, scenarioOptions);
+	}
 
 	/** adaption of MATSim population, e.g., radius cutting */
-	Population population = scenario.getPopulation();
-	long apoSeed = 1234;
-	PopulationPreparer.run(network, population, scenarioOptions, config,
-		apoSeed);
+	try (Phase phase = metrics.start("PopulationPreparer")) {
+	    long apoSeed = 1234;
+	    PopulationPreparer.run(network, population, scenarioOptions,
+		    config, apoSeed);
+	}
 
 	/**
 	 * creating a virtual network, e.g., for operational policies requiring
 	 * a graph structure on the city
 	 */
-	int endTime = (int) config.qsim().getEndTime();
-	VirtualNetworkPreparer.INSTANCE.create(network, population,
-		scenarioOptions, numRt, endTime); //
+	try (Phase phase = metrics.start("VirtualNetworkPreparer")) {
+	    int endTime = (int) config.qsim().getEndTime();
+	    VirtualNetworkPreparer.INSTANCE.create(network, population,
+		    scenarioOptions, numRt, endTime); //
+	}
 
 	/**
 	 * create a simulation MATSim config file linking the created input data
 	 */
 	ConfigCreator.createSimulationConfigFile(config, scenarioOptions);
+
+	/** keep the prepared network and population for the simulation */
+	Config simulationConfig = ConfigUtils.loadConfig(
+		scenarioOptions.getSimulationConfigName(), new AVConfigGroup(),
+		new DvrpConfigGroup());
+	context.putNetwork(ScenarioContext.getNetworkFile(simulationConfig),
+		network);
+	context.putPopulation(ScenarioContext.getPlansFile(simulationConfig),
+		population);
     }
 
     @Override
     public void run() throws Exception {
+	try (Phase phase = metrics.start("run")) {
+	    runScenario();
+	} finally {
+	    // do not keep the scenario loaded after the simulation
+	    ScenarioContext.INSTANCE.clear();
+	}
+    }
+
+    private void runScenario() throws Exception {
 	File workingDirectory = getScenarioDir().toFile();
 
 	/** working directory and options */
@@ -251,96 +291,118 @@ public class AmodScenarioCreator extends BaseScenarioCreator {
 	/** geographic information */
 	ReferenceFrame referenceFrame = AmodeusReferenceFrame.IDENTITY;
 
-	/** open server port for clients to connect to */
-	SimulationServer.INSTANCE.startAcceptingNonBlocking();
-	SimulationServer.INSTANCE.setWaitForClients(waitForClients);
+	/**
+	 * open server port for clients to connect to, not in headless runs where
+	 * several scenarios may run at the same time on the same port
+	 */
+	boolean headless = Boolean.getBoolean(HEADLESS_PROPERTY);
+	if (!headless) {
+	    SimulationServer.INSTANCE.startAcceptingNonBlocking();
+	    SimulationServer.INSTANCE.setWaitForClients(waitForClients);
+	}
 
+	String outputdirectory;
+	Network network;
+	MatsimAmodeusDatabase db;
+	Controler controler;
 	/**
 	 * load MATSim configs - including av.xml configurations, load routing
 	 * packages
 	 */
-	GlobalAssert.that(configFile.exists());
-	DvrpConfigGroup dvrpConfigGroup = new DvrpConfigGroup();
-	dvrpConfigGroup.setTravelTimeEstimationAlpha(0.05);
-	Config config = ConfigUtils.loadConfig(configFile.toString(),
-		new AVConfigGroup(), dvrpConfigGroup);
-	config.planCalcScore()
-		.addActivityParams(new ActivityParams("activity"));
-	/**
-	 * MATSim does not allow the typical duration not to be set, therefore
-	 * for scenarios
-	 * generated from taxi data such as the "SanFrancisco" scenario, it is
-	 * set to 1 hour.
-	 */
-	for (ActivityParams activityParams : config.planCalcScore()
-		.getActivityParams()) {
-	    // TODO set typical duration in scenario generation and remove
-	    activityParams.setTypicalDuration(3600.0);
-	}
-
-	/** output directory for saving results */
-	String outputdirectory = config.controler().getOutputDirectory();
-
-	/** load MATSim scenario for simulation */
-	Scenario scenario = ScenarioUtils.loadScenario(config);
-	AddCoordinatesToActivities.run(scenario);
-	Network network = scenario.getNetwork();
-	Population population = scenario.getPopulation();
-	GlobalAssert.that(Objects.nonNull(network));
-	GlobalAssert.that(Objects.nonNull(population));
-
-	MatsimAmodeusDatabase db = MatsimAmodeusDatabase.initialize(network,
-		referenceFrame);
-	Controler controler = new Controler(scenario);
-	controler.addOverridingModule(new DvrpTravelTimeModule());
-
-	try {
-	    // load linkSpeedData if possible
-	    File linkSpeedDataFile = new File(
-		    scenarioOptions.getLinkSpeedDataName());
-	    System.out.println(linkSpeedDataFile.toString());
-	    LinkSpeedDataContainer lsData = LinkSpeedUtils
-		    .loadLinkSpeedData(linkSpeedDataFile);
-	    controler.addOverridingQSimModule(new TrafficDataModule(lsData));
-	} catch (Exception exception) {
-	    System.err.println(
-		    "Could not load static linkspeed data, running with freespeeds.");
-	}
+	try (Phase phase = metrics.start("controlerSetup")) {
+	    GlobalAssert.that(configFile.exists());
+	    DvrpConfigGroup dvrpConfigGroup = new DvrpConfigGroup();
+	    dvrpConfigGroup.setTravelTimeEstimationAlpha(0.05);
+	    Config config = ConfigUtils.loadConfig(configFile.toString(),
+		    new AVConfigGroup(), dvrpConfigGroup);
+	    config.planCalcScore()
+		    .addActivityParams(new ActivityParams("activity"));
+	    /**
+	     * MATSim does not allow the typical duration not to be set, therefore
+	     * for scenarios
+	     * generated from taxi data such as the "SanFrancisco" scenario, it is
+	     * set to 1 hour.
+	     */
+	    for (ActivityParams activityParams : config.planCalcScore()
+		    .getActivityParams()) {
+		// TODO set typical duration in scenario generation and remove
+		activityParams.setTypicalDuration(3600.0);
+	    }
 
-	controler.addOverridingModule(new DvrpModule());
-	controler.addOverridingModule(new DvrpTravelTimeModule());
-	controler.addOverridingModule(new AVModule(false));
-	controler.addOverridingModule(new DatabaseModule());
-	controler.addOverridingModule(new AmodeusVehicleGeneratorModule());
-	controler.addOverridingModule(new AmodeusDispatcherModule());
-	controler.addOverridingModule(
-		new AmodeusVirtualNetworkModule(scenarioOptions));
-	controler.addOverridingModule(new AmodeusDatabaseModule(db));
-	controler.addOverridingModule(new AmodeusVehicleToVSGeneratorModule());
-	controler.addOverridingModule(new AmodeusModule());
-	controler.addOverridingModule(new AbstractModule() {
-	    @Override
-	    public void install() {
-		bind(Key.get(Network.class, Names.named("dvrp_routing")))
-			.to(Network.class);
+	    /** output directory for saving results */
+	    outputdirectory = config.controler().getOutputDirectory();
+
+	    /**
+	     * load MATSim scenario for simulation, the prepared network and
+	     * population are usually still loaded since prepare
+	     */
+	    Scenario scenario = ScenarioContext.INSTANCE.loadScenario(config);
+	    AddCoordinatesToActivities.run(scenario);
+	    network = scenario.getNetwork();
+	    Population population = scenario.getPopulation();
+	    GlobalAssert.that(Objects.nonNull(network));
+	    GlobalAssert.that(Objects.nonNull(population));
+
+	    db = MatsimAmodeusDatabase.initialize(network, referenceFrame);
+	    controler = new Controler(scenario);
+	    controler.addOverridingModule(new DvrpTravelTimeModule());
+
+	    try {
+		// load linkSpeedData if possible
+		File linkSpeedDataFile = new File(
+			scenarioOptions.getLinkSpeedDataName());
+		System.out.println(linkSpeedDataFile.toString());
+		LinkSpeedDataContainer lsData = LinkSpeedUtils
+			.loadLinkSpeedData(linkSpeedDataFile);
+		controler.addOverridingQSimModule(new TrafficDataModule(lsData));
+	    } catch (Exception exception) {
+		System.err.println(
+			"Could not load static linkspeed data, running with freespeeds.");
 	    }
-	});
 
-	/** run simulation */
-	controler.configureQSimComponents(AVQSimModule::configureComponents);
-	controler.run();
+	    controler.addOverridingModule(new DvrpModule());
+	    controler.addOverridingModule(new DvrpTravelTimeModule());
+	    controler.addOverridingModule(new AVModule(false));
+	    controler.addOverridingModule(new DatabaseModule());
+	    controler.addOverridingModule(new AmodeusVehicleGeneratorModule());
+	    controler.addOverridingModule(new AmodeusDispatcherModule());
+	    controler.addOverridingModule(
+		    new AmodeusVirtualNetworkModule(scenarioOptions));
+	    controler.addOverridingModule(new AmodeusDatabaseModule(db));
+	    controler.addOverridingModule(new AmodeusVehicleToVSGeneratorModule());
+	    controler.addOverridingModule(new AmodeusModule());
+	    controler.addOverridingModule(
+		    new IterationMetricsModule(timeArguments.dispatchPeriod));
+	    controler.addOverridingModule(new AbstractModule() {
+		@Override
+		public void install() {
+		    bind(Key.get(Network.class, Names.named("dvrp_routing")))
+			    .to(Network.class);
+		}
+	    });
+
+	    /** run simulation */
+	    controler.configureQSimComponents(AVQSimModule::configureComponents);
+	}
+	try (Phase phase = metrics.start("simulation")) {
+	    controler.run();
+	}
 
 	/** close port for visualizaiton */
-	SimulationServer.INSTANCE.stopAccepting();
+	if (!headless) {
+	    SimulationServer.INSTANCE.stopAccepting();
+	}
 
 	/**
 	 * perform analysis of simulation, a demo of how to add custom analysis
 	 * methods
 	 * is provided in the package amod.demo.analysis
 	 */
-	Analysis analysis = Analysis.setup(scenarioOptions,
-		new File(outputdirectory), network, db);
-	analysis.run();
+	try (Phase phase = metrics.start("analysis")) {
+	    Analysis analysis = Analysis.setup(scenarioOptions,
+		    new File(outputdirectory), network, db);
+	    analysis.run();
+	}
 
     }
 
@@ -22,15 +22,27 @@ import org.matsim.core.replanning.strategies.DefaultPlanStrategiesModule;
 import ch.ethz.matsim.av.framework.AVModule;
 import syncity.network.GridNetworkGenerator;
 import syncity.population.RandomPopulationGenerator;
+import utils.PhaseMetrics;
+import utils.PhaseMetrics.Phase;
 import utils.Structs.DispatcherArguments;
+import utils.Structs.NetworkArguments;
+import utils.Structs.PopulationArguments;
 
 public abstract class BaseScenarioCreator {
 
     private static final Logger log = Logger
 	    .getLogger(BaseScenarioCreator.class);
 
+    /**
+     * when true the scenario runs without interaction, e.g. the Amodeus
+     * viewer server is not started
+     */
+    public static final String HEADLESS_PROPERTY = "syncity.headless";
+
     protected static final String SCENARIO_CONFIG_FILENAME = "generated_config.xml";
-    protected static final String OUTPUT_DIR = "output";
+    public static final String OUTPUT_DIR = "output";
+    // the wall time, cpu time and memory of the scenario phases
+    public static final String METRICS_FILENAME = "phase-metrics.csv";
     protected static final String SCENARIO_BASE_DIR = "ScenarioBaseFiles/";
     protected static final String ALLOWED_LINK_MODE = TransportMode.car;
     protected static final String LEG_MODE = AVModule.AV_MODE;
@@ -53,11 +65,13 @@ public abstract class BaseScenarioCreator {
     protected int numOfIterations;
     protected DispatcherArguments timeArguments;
     protected String dispatcherAlgorithm;
+    protected PhaseMetrics metrics;
 
     public BaseScenarioCreator(Config baseConfig, String scenarioDirPath,
 	    int numOfIterations, String dispatcherAlgorithm,
 	    DispatcherArguments timeParameters) {
 	this.scenarioDir = Paths.get(scenarioDirPath);
+	this.metrics = new PhaseMetrics(scenarioDir.resolve(METRICS_FILENAME));
 	this.dispatcherAlgorithm = dispatcherAlgorithm;
 	this.numOfVehicles = timeParameters.vehiclesNum;
 	this.numOfIterations = numOfIterations;
@@ -86,8 +100,10 @@ public abstract class BaseScenarioCreator {
 	this(baseConfig, scenarioDirPath, numOfIterations,
 		dispatcherAlgorithm, timeParameters);
 	this.popSize = popSize;
-	addNetworkIfMissing(numOfStreets, numOfAvenues, false);
-	addPopulationIfMissing(popSize, true);
+	try (Phase phase = metrics.start("generateInputs")) {
+	    addNetworkIfMissing(numOfStreets, numOfAvenues, false);
+	    addPopulationIfMissing(popSize, true);
+	}
     }
 
     public static String[] getDispatchigAlgorithms() {
@@ -105,13 +121,16 @@ public abstract class BaseScenarioCreator {
      *                     network files to scenario directory
      */
     public void setAllConfigParams() throws IOException {
-	this.setQSimParams();
-	this.addDispatcherConfigGroup();
-	this.setPlanSelectionParams();
-	this.setPlanCalcScoreParams();
-	this.setControlerParams(false);
-
-	this.checkConsistency();
+	try (Phase phase = metrics.start("configure")) {
+	    this.setQSimParams();
+	    this.setThreadParams();
+	    this.addDispatcherConfigGroup();
+	    this.setPlanSelectionParams();
+	    this.setPlanCalcScoreParams();
+	    this.setControlerParams(false);
+
+	    this.checkConsistency();
+	}
     }
 
     /**
@@ -123,12 +142,13 @@ public abstract class BaseScenarioCreator {
      * @throws IOException
      */
     public void writeScenarioFiles() throws IOException {
-	Config config = getConfig();
-	Path scenarioDir = getScenarioDir();
-	ConfigUtils.writeConfig(config,
-		scenarioDir.resolve(SCENARIO_CONFIG_FILENAME).toString());
-	copyScenarioResources(scenarioDir);
-
+	try (Phase phase = metrics.start("writeScenarioFiles")) {
+	    Config config = getConfig();
+	    Path scenarioDir = getScenarioDir();
+	    ConfigUtils.writeConfig(config,
+		    scenarioDir.resolve(SCENARIO_CONFIG_FILENAME).toString());
+	    copyScenarioResources(scenarioDir);
+	}
     }
 
     /**
@@ -176,7 +196,7 @@ public abstract class BaseScenarioCreator {
      * that
      * file to the scenario dir, if not creates one using the
      * {@link GridNetworkGenerator}
-     * and write it to the scenario dir.
+     * and write it to the scenario dir (linked from the artifacts cache).
      * 
      * @param force If true creates a new network even if there is already one
      *              specified in the config
@@ -187,10 +207,11 @@ public abstract class BaseScenarioCreator {
 	    boolean force) throws IOException {
 	String filename;
 	if (getConfig().network().getInputFile() == null || force) {
-	    GridNetworkGenerator grid = new GridNetworkGenerator(numOfStreets,
-		    numOfAvenues);
-	    grid.generateGridNetwork();
-	    String netwokFile = grid.writeNetwork(getScenarioDir().toString());
+	    NetworkArguments networkParams = new NetworkArguments();
+	    networkParams.numOfSt = numOfStreets;
+	    networkParams.numOfAv = numOfAvenues;
+	    String netwokFile = GridNetworkGenerator.writeCachedNetwork(
+		    networkParams, getScenarioDir().toString());
 	    log.info("network file is: " + netwokFile);
 	    Path relativeNetworkFile = Paths.get(netwokFile).getFileName();
 	    filename = relativeNetworkFile.toString();
@@ -210,7 +231,8 @@ public abstract class BaseScenarioCreator {
      * Checks if the config already has a plans file specified, if so copies
      * that
      * file to the scenario dir, if not creates one using the
-     * {@link RandomPopulationGenerator} and write it to the scenario dir.
+     * {@link RandomPopulationGenerator} and write it to the scenario dir
+     * (linked from the artifacts cache).
      * 
      * @param force create new population even if one already exists
      * @return return true if a new population was created
@@ -220,11 +242,12 @@ public abstract class BaseScenarioCreator {
 	    throws IOException {
 	String filename;
 	if (getConfig().plans().getInputFile() == null || force) {
-	    RandomPopulationGenerator popGen = new RandomPopulationGenerator(
-		    this.getConfig(), popSize);
-	    popGen.populateNodes();
-	    String plansFile = popGen
-		    .writePopulation(this.getScenarioDir().toString());
+	    PopulationArguments popParams = new PopulationArguments();
+	    popParams.popSize = popSize;
+	    String networkFile = getScenarioDir()
+		    .resolve(getConfig().network().getInputFile()).toString();
+	    String plansFile = RandomPopulationGenerator.writeCachedPopulation(
+		    networkFile, popParams, this.getScenarioDir().toString());
 	    filename = Paths.get(plansFile).getFileName().toString();
 	} else {
 	    log.info(
@@ -318,7 +341,18 @@ public abstract class BaseScenarioCreator {
 	qsim.setEndTime(30 * 3600);
 	qsim.setSimStarttimeInterpretation(
 		QSimConfigGroup.StarttimeInterpretation.onlyUseStarttime);
-	qsim.setNumberOfThreads(getNumberOfThreads());
+    }
+
+    /**
+     * Set the QSim, global and event handling threads by the cores and memory
+     * of this JVM, see {@link ThreadLayout}
+     */
+    protected void setThreadParams() {
+	ThreadLayout layout = ThreadLayout.plan(getMaxQSimThreads(),
+		timeArguments);
+	layout.apply(getConfig());
+	log.info("Thread layout for " + getScenarioDir().getFileName() + ": "
+		+ layout);
     }
 
     protected void checkConsistency() {
@@ -329,7 +363,10 @@ public abstract class BaseScenarioCreator {
     // Setter and Getters
     //////////////////////////////////////////////////////////
 
-    protected abstract int getNumberOfThreads();
+    /**
+     * @return the most QSim threads the mobsim of the scenario supports
+     */
+    protected abstract int getMaxQSimThreads();
 
     public int getNumOfVehicles() {
 	return numOfVehicles;
@@ -1,27 +1,32 @@
 package syncity.scenarios;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
-import java.util.stream.Stream;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.contrib.drt.optimizer.rebalancing.mincostflow.MinCostFlowRebalancingParams;
 import org.matsim.contrib.drt.run.DrtConfigGroup;
 import org.matsim.contrib.drt.run.DrtControlerCreator;
+import org.matsim.contrib.drt.run.DrtModule;
 import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
 import org.matsim.contrib.dvrp.fleet.DvrpVehicleSpecification;
 import org.matsim.contrib.dvrp.fleet.FleetWriter;
 import org.matsim.contrib.dvrp.fleet.ImmutableDvrpVehicleSpecification;
 import org.matsim.contrib.dvrp.run.DvrpConfigGroup;
+import org.matsim.contrib.dvrp.run.DvrpModule;
+import org.matsim.contrib.dvrp.run.DvrpQSimComponents;
 import org.matsim.core.config.Config;
 import org.matsim.core.controler.Controler;
-import org.matsim.core.gbl.MatsimRandom;
-import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scenario.MutableScenario;
 import org.matsim.vis.otfvis.OTFVisConfigGroup;
 
+import utils.PhaseMetrics.Phase;
+import utils.ScenarioContext;
 import utils.Structs.DispatcherArguments;
 
 public class DrtScenarioCreator extends BaseScenarioCreator {
@@ -34,7 +39,11 @@ public class DrtScenarioCreator extends BaseScenarioCreator {
 
     private boolean rebalance = true;
     private boolean enableRejection = true;
+    private boolean demandWeightedFleet = false;
     private DrtConfigGroup drtConfig;
+    // kept between fleets, the inputs are read again only if they change
+    private FleetGenerator fleetGenerator = null;
+    private String fleetInputs = null;
 
     public DrtScenarioCreator(Config baseConfig, String scenarioDirPath,
 	    int numOfIterations, String dispatcherAlgorithm,
@@ -53,6 +62,7 @@ public class DrtScenarioCreator extends BaseScenarioCreator {
 
 	rebalance = dispatcherParams.rebalance;
 	enableRejection = dispatcherParams.rejection;
+	demandWeightedFleet = dispatcherParams.demandWeightedFleet;
     }
 
     public DrtScenarioCreator(Config baseConfig, String scenarioDirPath,
@@ -65,6 +75,7 @@ public class DrtScenarioCreator extends BaseScenarioCreator {
 
 	rebalance = dispatcherParams.rebalance;
 	enableRejection = dispatcherParams.rejection;
+	demandWeightedFleet = dispatcherParams.demandWeightedFleet;
     }
 
     protected String[] getScenarioTemplateFiles() {
@@ -76,7 +87,8 @@ public class DrtScenarioCreator extends BaseScenarioCreator {
 		DISPATCHING_ALGORITHMS.length);
     }
 
-    protected int getNumberOfThreads() {
+    protected int getMaxQSimThreads() {
+	// the DVRP mobsim is single threaded
 	return 1;
     }
 
@@ -91,32 +103,42 @@ public class DrtScenarioCreator extends BaseScenarioCreator {
 	int seatsPerVehicle = timeArguments.seatsPerVehicle; // this is important for DRT, value is not used
 				  // by taxi
 	double operationStartTime = getConfig().qsim().getStartTime();
-	;
 	double operationEndTime = getConfig().qsim().getEndTime();
-	Random random = MatsimRandom.getRandom();
-
-	Scenario scenario = ScenarioUtils.loadScenario(config);
-	final int[] i = { 0 };
-	final String allowedMode = BaseScenarioCreator.ALLOWED_LINK_MODE;
-	Stream<DvrpVehicleSpecification> vehicleSpecificationStream = scenario
-		.getNetwork().getLinks().entrySet().stream()
-		.filter(entry -> entry.getValue().getAllowedModes()
-			.contains(allowedMode)) // drt can only start on links
-						// with Transport mode 'car'
-		.sorted((e1, e2) -> (random.nextInt(2) - 1)) // shuffle links
-		.limit(this.numOfVehicles) // select the first
-					   // *numberOfVehicles* links
-		.map(entry -> ImmutableDvrpVehicleSpecification.newBuilder()
-			.id(Id.create("drt_" + i[0]++, DvrpVehicle.class))
-			.startLinkId(entry.getKey()).capacity(seatsPerVehicle)
-			.serviceBeginTime(operationStartTime)
-			.serviceEndTime(operationEndTime).build());
+
+	List<DvrpVehicleSpecification> vehicles = new ArrayList<>();
+	for (Id<Link> startLink : getFleetGenerator()
+		.sampleStartLinks(this.numOfVehicles)) {
+	    vehicles.add(ImmutableDvrpVehicleSpecification.newBuilder()
+		    .id(Id.create("drt_" + vehicles.size(), DvrpVehicle.class))
+		    .startLinkId(startLink).capacity(seatsPerVehicle)
+		    .serviceBeginTime(operationStartTime)
+		    .serviceEndTime(operationEndTime).build());
+	}
 	final String filename = "vehicles-" + getNumOfVehicles() + ".xml";
 	final String outpath = scenarioDir.resolve(filename).toString();
-	new FleetWriter(vehicleSpecificationStream).write(outpath);
+	new FleetWriter(vehicles.stream()).write(outpath);
 	return outpath;
     }
 
+    /*
+     * drt can only start on links with Transport mode 'car', the population
+     * is read only for a demand weighted fleet
+     */
+    private FleetGenerator getFleetGenerator() {
+	String inputs = config.network().getInputFile() + "|"
+		+ (demandWeightedFleet ? config.plans().getInputFile() : "");
+	if (fleetGenerator == null || !inputs.equals(fleetInputs)) {
+	    fleetInputs = inputs;
+	    ScenarioContext context = ScenarioContext.INSTANCE;
+	    fleetGenerator = new FleetGenerator(context.getNetwork(config),
+		    BaseScenarioCreator.ALLOWED_LINK_MODE);
+	    if (demandWeightedFleet) {
+		fleetGenerator.setHomeWeights(context.getPopulation(config));
+	    }
+	}
+	return fleetGenerator;
+    }
+
     @Override
     protected void addDispatcherConfigGroup() {
 	DrtConfigGroup drtConfigGroup = new DrtConfigGroup();
@@ -156,15 +178,39 @@ public class DrtScenarioCreator extends BaseScenarioCreator {
 
     @Override
     public void prepare() throws Exception {
-	setAllConfigParams();
-	writeScenarioFiles();
+	try (Phase phase = metrics.start("prepare")) {
+	    setAllConfigParams();
+	    writeScenarioFiles();
+	}
     }
 
     @Override
     public void run() throws Exception {
-	Controler controler = DrtControlerCreator
-		.createControlerWithSingleModeDrt(getConfig(), false);
-	controler.run();
+	try (Phase phase = metrics.start("run")) {
+	    Controler controler;
+	    try (Phase setup = metrics.start("controlerSetup")) {
+		// as DrtControlerCreator.createControlerWithSingleModeDrt, but
+		// with the network and population of the scenario context
+		Scenario scenario = DrtControlerCreator
+			.createScenarioWithDrtRouteFactory(getConfig());
+		ScenarioContext.INSTANCE
+			.loadScenario((MutableScenario) scenario);
+		controler = new Controler(scenario);
+		controler.addOverridingModule(new DvrpModule());
+		controler.addOverridingModule(new DrtModule());
+		controler.configureQSimComponents(
+			DvrpQSimComponents.activateModes(drtConfig.getMode()));
+		// the DRT optimizer handles the requests every sim step, so
+		// there are no dispatch steps to tell apart
+		controler.addOverridingModule(new IterationMetricsModule());
+	    }
+	    try (Phase simulation = metrics.start("simulation")) {
+		controler.run();
+	    }
+	} finally {
+	    // do not keep the scenario loaded after the simulation
+	    ScenarioContext.INSTANCE.clear();
+	}
     }
 
     @Override
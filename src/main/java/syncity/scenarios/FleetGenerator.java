@@ -0,0 +1,216 @@
+package syncity.scenarios;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.population.PersonFactory;
+import utils.RandomStreams;
+
+/**
+ * Chooses the start links of a fleet. The links the vehicles may start on
+ * are collected once, and every fleet is then sampled in O(number of
+ * vehicles): uniformly over distinct links with Floyd's algorithm, or in
+ * proportion to link weights (e.g. the number of homes on each link) with
+ * the alias method.
+ */
+public class FleetGenerator {
+
+    private static final String RANDOM_COMPONENT = "fleet";
+
+    private final List<Id<Link>> links = new ArrayList<>();
+    private final RandomGenerator random;
+
+    // the alias table of the weighted sampling, null for uniform sampling
+    private double[] probabilities = null;
+    private int[] aliases = null;
+
+    /**
+     * @param network     the network to place the fleet on
+     * @param allowedMode the mode a start link must allow
+     */
+    public FleetGenerator(Network network, String allowedMode) {
+	this(network, allowedMode, RandomStreams.create(RANDOM_COMPONENT, 0));
+    }
+
+    public FleetGenerator(Network network, String allowedMode,
+	    RandomGenerator random) {
+	this.random = random;
+	for (Link link : network.getLinks().values()) {
+	    if (link.getAllowedModes().contains(allowedMode)) {
+		links.add(link.getId());
+	    }
+	}
+	if (links.isEmpty()) {
+	    throw new RuntimeException(
+		    "No links allowing " + allowedMode + " for the fleet");
+	}
+    }
+
+    /**
+     * Place the vehicles in proportion to the homes of the population, a
+     * link without homes gets no vehicles. Without any home on the allowed
+     * links the placement stays uniform.
+     *
+     * @param population the population whose homes weight the links
+     */
+    public void setHomeWeights(Population population) {
+	Map<Id<Link>, Integer> homes = new HashMap<>();
+	for (Person person : population.getPersons().values()) {
+	    Id<Link> homeLink = getHomeLinkId(person);
+	    if (homeLink != null) {
+		homes.merge(homeLink, 1, Integer::sum);
+	    }
+	}
+	double[] weights = new double[links.size()];
+	for (int i = 0; i < weights.length; i++) {
+	    weights[i] = homes.getOrDefault(links.get(i), 0);
+	}
+	setWeights(weights);
+    }
+
+    /**
+     * Place the vehicles in proportion to the given weights
+     *
+     * @param weights a non negative weight per link, in the order of
+     *                {@link #getLinks()}, null for uniform placement
+     */
+    public void setWeights(double[] weights) {
+	probabilities = null;
+	aliases = null;
+	if (weights == null) {
+	    return;
+	}
+	if (weights.length != links.size()) {
+	    throw new IllegalArgumentException("Expected " + links.size()
+		    + " weights but got " + weights.length);
+	}
+	double total = 0;
+	for (double weight : weights) {
+	    total += weight;
+	}
+	if (total > 0) {
+	    buildAliasTable(weights, total);
+	}
+    }
+
+    /**
+     * @return the links vehicles may start on
+     */
+    public List<Id<Link>> getLinks() {
+	return links;
+    }
+
+    /**
+     * Sample the start links of a fleet. With weights the links are drawn
+     * independently (a link may hold several vehicles), otherwise every link
+     * is used at most once as long as there are more links than vehicles.
+     *
+     * @param numOfVehicles the size of the fleet
+     * @return the start link of every vehicle
+     */
+    public List<Id<Link>> sampleStartLinks(int numOfVehicles) {
+	List<Id<Link>> startLinks = new ArrayList<>(numOfVehicles);
+	if (probabilities != null) {
+	    for (int v = 0; v < numOfVehicles; v++) {
+		startLinks.add(links.get(sampleAlias()));
+	    }
+	    return startLinks;
+	}
+	// larger fleets fill all the links evenly first
+	int n = links.size();
+	for (int round = 0; round < numOfVehicles / n; round++) {
+	    startLinks.addAll(links);
+	}
+	for (int index : sampleDistinct(numOfVehicles % n, n)) {
+	    startLinks.add(links.get(index));
+	}
+	return startLinks;
+    }
+
+    /*
+     * Floyd's algorithm, k distinct indices out of n with k draws
+     */
+    private Set<Integer> sampleDistinct(int k, int n) {
+	Set<Integer> sample = new LinkedHashSet<>(2 * k);
+	for (int j = n - k; j < n; j++) {
+	    int t = random.nextInt(j + 1);
+	    sample.add(sample.contains(t) ? j : t);
+	}
+	return sample;
+    }
+
+    private int sampleAlias() {
+	int column = random.nextInt(probabilities.length);
+	return random.nextDouble() < probabilities[column] ? column
+		: aliases[column];
+    }
+
+    /*
+     * Vose's alias method, every column holds its own index with
+     * probabilities[i] and aliases[i] otherwise
+     */
+    private void buildAliasTable(double[] weights, double total) {
+	int n = weights.length;
+	probabilities = new double[n];
+	aliases = new int[n];
+	double[] scaled = new double[n];
+	int[] small = new int[n];
+	int[] large = new int[n];
+	int numOfSmall = 0;
+	int numOfLarge = 0;
+	for (int i = 0; i < n; i++) {
+	    scaled[i] = weights[i] * n / total;
+	    if (scaled[i] < 1) {
+		small[numOfSmall++] = i;
+	    } else {
+		large[numOfLarge++] = i;
+	    }
+	}
+	while (numOfSmall > 0 && numOfLarge > 0) {
+	    int less = small[--numOfSmall];
+	    int more = large[--numOfLarge];
+	    probabilities[less] = scaled[less];
+	    aliases[less] = more;
+	    scaled[more] = scaled[more] + scaled[less] - 1;
+	    if (scaled[more] < 1) {
+		small[numOfSmall++] = more;
+	    } else {
+		large[numOfLarge++] = more;
+	    }
+	}
+	// what is left is 1 up to rounding errors
+	while (numOfLarge > 0) {
+	    probabilities[large[--numOfLarge]] = 1;
+	}
+	while (numOfSmall > 0) {
+	    probabilities[small[--numOfSmall]] = 1;
+	}
+    }
+
+    /*
+     * the link of the first home activity in the selected plan
+     */
+    private static Id<Link> getHomeLinkId(Person person) {
+	for (PlanElement element : person.getSelectedPlan()
+		.getPlanElements()) {
+	    if (element instanceof Activity && PersonFactory.HOME_ACTIVITY_TYPE
+		    .equals(((Activity) element).getType())) {
+		return ((Activity) element).getLinkId();
+	    }
+	}
+	return null;
+    }
+}
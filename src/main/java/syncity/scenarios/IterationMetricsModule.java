@@ -0,0 +1,318 @@
+package syncity.scenarios;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.AfterMobsimEvent;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.AfterMobsimListener;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+import org.matsim.core.controler.listener.StartupListener;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.mobsim.framework.events.MobsimAfterSimStepEvent;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimAfterSimStepListener;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeSimStepListener;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import utils.LatencyHistogram;
+
+/**
+ * Measures the throughput of every iteration of a simulation and writes it
+ * to {@value #METRICS_FILENAME} in the output directory: the replanning time
+ * (from the start of the iteration to the mobsim, including the preparation
+ * of the plans), the mobsim time, the events and agents simulated per
+ * second, the latency of the sim steps and the GC pauses.
+ *
+ * The dispatcher runs inside the sim steps, so its latency is measured as
+ * the latency of the sim steps it runs in (every dispatchPeriod seconds),
+ * apart from the latency of the other steps. The full histograms of the
+ * dispatch steps are written to {@value #HISTOGRAM_FILENAME}. Simulations
+ * without a periodic dispatcher (e.g. DRT, whose optimizer handles the
+ * requests every sim step) measure all the steps together, and leave the
+ * dispatch columns empty.
+ *
+ * The rows are appended at the end of every iteration, so the iterations
+ * that finished are kept even if the run fails.
+ */
+public class IterationMetricsModule extends AbstractModule {
+
+    public static final String METRICS_FILENAME = "iteration-metrics.csv";
+    public static final String HISTOGRAM_FILENAME = "dispatch-latency-histogram.csv";
+    public static final String HEADER = "Iteration;Agents;ReplanningTime[s];"
+	    + "MobsimTime[s];AfterMobsimTime[s];Events;EventsPerSecond;"
+	    + "AgentsPerSecond;SimSteps;StepP50[us];StepP99[us];StepMax[us];"
+	    + "DispatchSteps;DispatchMean[us];DispatchP50[us];DispatchP90[us];"
+	    + "DispatchP99[us];DispatchP999[us];DispatchMax[us];GcPauses;"
+	    + "GcTime[s];GcMaxPause[ms]";
+
+    // 0 if the steps are not split by the dispatcher
+    private final int dispatchPeriod;
+
+    /**
+     * measure the sim steps without a dispatch split
+     */
+    public IterationMetricsModule() {
+	this.dispatchPeriod = 0;
+    }
+
+    /**
+     * @param dispatchPeriod the period the dispatcher runs at [s], 1 if it
+     *                       runs every sim step
+     */
+    public IterationMetricsModule(int dispatchPeriod) {
+	this.dispatchPeriod = Math.max(1, dispatchPeriod);
+    }
+
+    @Override
+    public void install() {
+	IterationMetrics metrics = new IterationMetrics(dispatchPeriod);
+	addControlerListenerBinding().toInstance(metrics);
+	addEventHandlerBinding().toInstance(metrics);
+	addMobsimListenerBinding().toInstance(metrics);
+    }
+
+    /**
+     * The listener measuring the iterations. The sim step listeners are
+     * called by the main QSim thread, the event handler by the event handling
+     * threads and the GC listener by a JMX thread.
+     */
+    private static class IterationMetrics implements StartupListener,
+	    IterationStartsListener, BeforeMobsimListener, AfterMobsimListener,
+	    IterationEndsListener, ShutdownListener, BasicEventHandler,
+	    MobsimBeforeSimStepListener, MobsimAfterSimStepListener,
+	    NotificationListener {
+
+	private static final Logger log = Logger
+		.getLogger(IterationMetricsModule.class);
+
+	private final int dispatchPeriod;
+	private final LatencyHistogram steps = new LatencyHistogram();
+	private final LatencyHistogram dispatchSteps = new LatencyHistogram();
+	private final LongAdder events = new LongAdder();
+	private final List<NotificationEmitter> gcEmitters = new ArrayList<>();
+
+	private Path metricsFile;
+	private Path histogramFile;
+	private int agents;
+	private long iterationStart;
+	private long mobsimStart;
+	private long mobsimEnd;
+	private long stepStart;
+
+	// written by the GC notification thread
+	private long gcPauses;
+	private long gcTime; // [ms]
+	private long gcMaxPause; // [ms]
+
+	IterationMetrics(int dispatchPeriod) {
+	    this.dispatchPeriod = dispatchPeriod;
+	}
+
+	@Override
+	public void notifyStartup(StartupEvent event) {
+	    OutputDirectoryHierarchy io = event.getServices().getControlerIO();
+	    metricsFile = Paths.get(io.getOutputFilename(METRICS_FILENAME));
+	    agents = event.getServices().getScenario().getPopulation()
+		    .getPersons().size();
+	    try {
+		Files.write(metricsFile, (HEADER + "\n").getBytes());
+		if (dispatchPeriod > 0) {
+		    histogramFile = Paths
+			    .get(io.getOutputFilename(HISTOGRAM_FILENAME));
+		    Files.write(histogramFile,
+			    "Iteration;UpperBound[us];Count\n".getBytes());
+		}
+	    } catch (IOException e) {
+		log.warn("Failed to create the iteration metrics files", e);
+	    }
+	    for (GarbageCollectorMXBean gc : ManagementFactory
+		    .getGarbageCollectorMXBeans()) {
+		if (gc instanceof NotificationEmitter) {
+		    ((NotificationEmitter) gc).addNotificationListener(this,
+			    null, null);
+		    gcEmitters.add((NotificationEmitter) gc);
+		}
+	    }
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+	    steps.reset();
+	    dispatchSteps.reset();
+	    events.reset();
+	    synchronized (this) {
+		gcPauses = 0;
+		gcTime = 0;
+		gcMaxPause = 0;
+	    }
+	    iterationStart = System.nanoTime();
+	    mobsimStart = iterationStart;
+	    mobsimEnd = iterationStart;
+	}
+
+	@Override
+	public void notifyBeforeMobsim(BeforeMobsimEvent event) {
+	    // the events of the replanning are not of the mobsim
+	    events.reset();
+	    mobsimStart = System.nanoTime();
+	}
+
+	@Override
+	public void notifyAfterMobsim(AfterMobsimEvent event) {
+	    mobsimEnd = System.nanoTime();
+	}
+
+	@Override
+	public void notifyMobsimBeforeSimStep(MobsimBeforeSimStepEvent e) {
+	    stepStart = System.nanoTime();
+	}
+
+	@Override
+	public void notifyMobsimAfterSimStep(MobsimAfterSimStepEvent e) {
+	    long latency = (System.nanoTime() - stepStart) / 1000;
+	    if (dispatchPeriod > 0
+		    && (long) e.getSimulationTime() % dispatchPeriod == 0) {
+		dispatchSteps.record(latency);
+	    } else {
+		steps.record(latency);
+	    }
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+	    events.increment();
+	}
+
+	@Override
+	public void reset(int iteration) {
+	    // the counts are reset at the start of the iteration
+	}
+
+	@Override
+	public void handleNotification(Notification notification,
+		Object handback) {
+	    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+		    .equals(notification.getType())) {
+		return;
+	    }
+	    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+		    .from((CompositeData) notification.getUserData());
+	    String name = info.getGcName();
+	    // the concurrent cycles of G1, CMS and ZGC do not stop the threads
+	    if (name.contains("Concurrent") || name.contains("Cycles")) {
+		return;
+	    }
+	    long duration = info.getGcInfo().getDuration();
+	    synchronized (this) {
+		gcPauses++;
+		gcTime += duration;
+		gcMaxPause = Math.max(gcMaxPause, duration);
+	    }
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+	    long iterationEnd = System.nanoTime();
+	    double replanningTime = (mobsimStart - iterationStart) / 1e9;
+	    double mobsimTime = (mobsimEnd - mobsimStart) / 1e9;
+	    double afterMobsimTime = (iterationEnd - mobsimEnd) / 1e9;
+	    long numOfEvents = events.sum();
+	    long numOfSteps = steps.getCount() + dispatchSteps.getCount();
+	    // the dispatch columns are empty without a dispatch split
+	    String dispatch = dispatchPeriod == 0 ? ";;;;;;"
+		    : String.format(Locale.ROOT, "%d;%.1f;%d;%d;%d;%d;%d",
+			    dispatchSteps.getCount(), dispatchSteps.getMean(),
+			    dispatchSteps.getValueAtPercentile(50),
+			    dispatchSteps.getValueAtPercentile(90),
+			    dispatchSteps.getValueAtPercentile(99),
+			    dispatchSteps.getValueAtPercentile(99.9),
+			    dispatchSteps.getMax());
+	    String row;
+	    synchronized (this) {
+		row = String.format(Locale.ROOT,
+			"%d;%d;%.3f;%.3f;%.3f;%d;%.1f;%.1f;%d;%d;%d;%d;%s;%d;%.3f;%d",
+			event.getIteration(), agents, replanningTime,
+			mobsimTime, afterMobsimTime, numOfEvents,
+			mobsimTime > 0 ? numOfEvents / mobsimTime : 0,
+			mobsimTime > 0 ? agents / mobsimTime : 0, numOfSteps,
+			steps.getValueAtPercentile(50),
+			steps.getValueAtPercentile(99), steps.getMax(),
+			dispatch, gcPauses, gcTime / 1e3, gcMaxPause);
+	    }
+	    StringBuilder histogram = new StringBuilder();
+	    for (int i = 0; i < dispatchSteps.getNumOfBuckets(); i++) {
+		if (dispatchSteps.getBucketCount(i) > 0) {
+		    histogram.append(event.getIteration()).append(';')
+			    .append(LatencyHistogram.bucketUpperBound(i))
+			    .append(';').append(dispatchSteps.getBucketCount(i))
+			    .append('\n');
+		}
+	    }
+	    append(metricsFile, row + "\n");
+	    append(histogramFile, histogram.toString());
+	    LatencyHistogram logged = dispatchPeriod == 0 ? steps
+		    : dispatchSteps;
+	    log.info("Iteration " + event.getIteration() + ": "
+		    + String.format(Locale.ROOT,
+			    "mobsim %.1fs, %.0f events/s, %s p99 %dus",
+			    mobsimTime,
+			    mobsimTime > 0 ? numOfEvents / mobsimTime : 0,
+			    dispatchPeriod == 0 ? "step" : "dispatch",
+			    logged.getValueAtPercentile(99)));
+	}
+
+	@Override
+	public void notifyShutdown(ShutdownEvent event) {
+	    for (NotificationEmitter emitter : gcEmitters) {
+		try {
+		    emitter.removeNotificationListener(this);
+		} catch (ListenerNotFoundException e) {
+		    // already removed
+		}
+	    }
+	    gcEmitters.clear();
+	}
+
+	private static void append(Path file, String text) {
+	    if (file == null) {
+		return;
+	    }
+	    try (BufferedWriter writer = Files.newBufferedWriter(file,
+		    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+		writer.write(text);
+	    } catch (IOException e) {
+		// the metrics should not fail the run
+		log.warn("Failed to write the iteration metrics to " + file, e);
+	    }
+	}
+    }
+}
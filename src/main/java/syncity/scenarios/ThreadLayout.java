@@ -0,0 +1,126 @@
+package syncity.scenarios;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.config.Config;
+
+import utils.Structs.DispatcherArguments;
+
+/**
+ * The threads of a simulation: the QSim threads, the global threads (used
+ * by replanning and routing, which run between the mobsim iterations) and
+ * the parallel event handling threads (which run along the QSim).
+ *
+ * The layout is planned from the cores and memory of the JVM: the global
+ * threads use all the cores as long as there is memory for their routers,
+ * the QSim uses as many cores as the mobsim supports, and the event
+ * handling gets the rest (up to {@value #MAX_EVENTS_THREADS}). The number of
+ * cores is taken from the "syncity.cores" system property when set (e.g. the
+ * share of an experiment cell), and every count can be set explicitly in
+ * {@link DispatcherArguments}.
+ */
+public class ThreadLayout {
+
+    private static final Logger log = Logger.getLogger(ThreadLayout.class);
+
+    public static final String CORES_PROPERTY = "syncity.cores";
+
+    // more event handling threads rarely help, the handlers are few
+    private static final int MAX_EVENTS_THREADS = 4;
+    // the memory a routing thread needs for its router data
+    private static final long MEMORY_PER_GLOBAL_THREAD_MB = 256;
+
+    public final int numOfCores;
+    public final long memoryMb;
+    public final int qsimThreads;
+    public final int globalThreads;
+    // 0 for sequential event handling
+    public final int eventsThreads;
+
+    public ThreadLayout(int numOfCores, long memoryMb, int qsimThreads,
+	    int globalThreads, int eventsThreads) {
+	this.numOfCores = numOfCores;
+	this.memoryMb = memoryMb;
+	this.qsimThreads = qsimThreads;
+	this.globalThreads = globalThreads;
+	this.eventsThreads = eventsThreads;
+    }
+
+    /**
+     * Plan the layout of this JVM
+     *
+     * @param maxQSimThreads the most QSim threads the mobsim supports
+     * @param params         explicit thread counts, positive values are used
+     *                       as given (the QSim threads are still limited by
+     *                       maxQSimThreads)
+     * @return the layout
+     */
+    public static ThreadLayout plan(int maxQSimThreads,
+	    DispatcherArguments params) {
+	int numOfCores = Integer.getInteger(CORES_PROPERTY,
+		Runtime.getRuntime().availableProcessors());
+	long memoryMb = Runtime.getRuntime().maxMemory() >> 20;
+	return plan(numOfCores, memoryMb, maxQSimThreads, params);
+    }
+
+    /**
+     * Plan the layout for the given resources
+     *
+     * @param numOfCores     the cores the simulation may use
+     * @param memoryMb       the memory of the simulation [MB]
+     * @param maxQSimThreads the most QSim threads the mobsim supports
+     * @param params         explicit thread counts, see
+     *                       {@link #plan(int, DispatcherArguments)}
+     * @return the layout
+     */
+    public static ThreadLayout plan(int numOfCores, long memoryMb,
+	    int maxQSimThreads, DispatcherArguments params) {
+	numOfCores = Math.max(1, numOfCores);
+	int qsimThreads = Math.min(numOfCores, maxQSimThreads);
+	if (params.numOfQSimThreads > maxQSimThreads) {
+	    log.warn("The mobsim supports up to " + maxQSimThreads
+		    + " QSim threads, ignoring numOfQSimThreads="
+		    + params.numOfQSimThreads);
+	} else if (params.numOfQSimThreads > 0) {
+	    qsimThreads = params.numOfQSimThreads;
+	}
+
+	int globalThreads = (int) Math.max(1, Math.min(numOfCores,
+		memoryMb / MEMORY_PER_GLOBAL_THREAD_MB));
+	if (params.numOfGlobalThreads > 0) {
+	    globalThreads = params.numOfGlobalThreads;
+	}
+
+	// the event handling shares the cores with the QSim
+	int eventsThreads = Math.min(numOfCores - qsimThreads,
+		MAX_EVENTS_THREADS);
+	if (params.numOfEventsThreads >= 0) {
+	    eventsThreads = params.numOfEventsThreads;
+	}
+	return new ThreadLayout(numOfCores, memoryMb, qsimThreads,
+		globalThreads, Math.max(0, eventsThreads));
+    }
+
+    /**
+     * set the thread counts of the config
+     *
+     * @param config the config to set
+     */
+    public void apply(Config config) {
+	config.qsim().setNumberOfThreads(qsimThreads);
+	config.global().setNumberOfThreads(globalThreads);
+	if (eventsThreads > 0) {
+	    config.parallelEventHandling().setNumberOfThreads(eventsThreads);
+	} else {
+	    config.parallelEventHandling().setNumberOfThreads(null);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+		"%d cores and %d MB: %d QSim threads, %d global threads, %s",
+		numOfCores, memoryMb, qsimThreads, globalThreads,
+		eventsThreads > 0 ? eventsThreads + " event handling threads"
+			: "sequential event handling");
+    }
+}
@@ -0,0 +1,473 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * A content addressed on-disk cache of generated scenario files (networks,
+ * populations), so identical inputs are generated once and reused by every
+ * run that needs them.
+ *
+ * An entry is a directory named by the SHA-256 of the generation parameters
+ * (see {@link #key(Object...)}) holding the artifact files, and a marker file
+ * with the name of the main file. The entries are produced in a temporary
+ * directory and moved into place at once, so several processes can share a
+ * cache. Files are hard-linked out of the cache (copied when linking is not
+ * possible), so the stored files are made read-only, and writers replace an
+ * existing output file (see {@link #unlinkOutput(Path)}) rather than write
+ * through a link. When the total size passes the maximum, the least
+ * recently used entries are evicted.
+ * The size of every entry is written into it when it is stored, and the
+ * total size is kept running, so the entries are only listed when the
+ * maximum is passed (which also counts the entries of other processes).
+ *
+ * The default cache is in "~/.syncity/cache" with a maximum of 20GB, and can
+ * be changed with the "syncity.cache.dir" and "syncity.cache.maxSize" (in
+ * bytes) system properties.
+ */
+public class ArtifactCache {
+
+    public static final String DIR_PROPERTY = "syncity.cache.dir";
+    public static final String MAX_SIZE_PROPERTY = "syncity.cache.maxSize";
+
+    private static final long DEFAULT_MAX_SIZE = 20L << 30; // [bytes]
+    // changing the generators output should change this version
+    private static final String KEY_VERSION = "1";
+    private static final String MARKER_FILENAME = ".artifact";
+    private static final String SIZE_FILENAME = ".size";
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    private static ArtifactCache defaultCache = null;
+    // the hashes of the files by their absolute path
+    private static final Map<Path, FileHash> fileHashes = new ConcurrentHashMap<>();
+
+    /**
+     * Produces the files of an artifact into an empty directory
+     */
+    public interface Producer {
+	/**
+	 * @param dir the directory to write the files into
+	 * @return the main file of the artifact
+	 */
+	Path produce(Path dir) throws IOException;
+    }
+
+    private final Path root;
+    private final long maxSize;
+    // the size of the entries, -1 until they are listed
+    private long totalSize = -1;
+
+    public ArtifactCache(Path root, long maxSize) {
+	this.root = root;
+	this.maxSize = maxSize;
+    }
+
+    public static synchronized ArtifactCache getDefault() {
+	if (defaultCache == null) {
+	    Path root = Paths.get(System.getProperty(DIR_PROPERTY, Paths
+		    .get(System.getProperty("user.home"), ".syncity", "cache")
+		    .toString()));
+	    long maxSize = Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+	    defaultCache = new ArtifactCache(root, maxSize);
+	}
+	return defaultCache;
+    }
+
+    /**
+     * The key of an artifact, the SHA-256 of its parts. Structs are hashed by
+     * the values of their public fields, paths by the content of the file and
+     * anything else by its string value.
+     *
+     * @param parts the parameters the artifact is generated from
+     * @return the key, as a hex string
+     */
+    public static String key(Object... parts) {
+	MessageDigest digest = createDigest();
+	update(digest, KEY_VERSION);
+	for (Object part : parts) {
+	    if (part instanceof Structs.BaseStruct) {
+		update(digest, describeStruct(part));
+	    } else if (part instanceof Path) {
+		update(digest, "file:" + hashFile((Path) part));
+	    } else {
+		update(digest, String.valueOf(part));
+	    }
+	}
+	return toHex(digest.digest());
+    }
+
+    /**
+     * The hash is kept by the file path, size and modification time, so
+     * hashing the same file again (e.g. the network of several populations)
+     * does not read it again.
+     *
+     * @param file the file to hash
+     * @return the SHA-256 of the file content, as a hex string
+     */
+    public static String hashFile(Path file) {
+	Path path = file.toAbsolutePath().normalize();
+	long size;
+	FileTime modified;
+	try {
+	    size = Files.size(path);
+	    modified = Files.getLastModifiedTime(path);
+	} catch (IOException e) {
+	    throw new RuntimeException("Failed to hash " + file, e);
+	}
+	FileHash cached = fileHashes.get(path);
+	if (cached != null && cached.size == size
+		&& cached.modified.equals(modified)) {
+	    return cached.hash;
+	}
+	String hash = hashContent(path);
+	fileHashes.put(path, new FileHash(size, modified, hash));
+	return hash;
+    }
+
+    private static String hashContent(Path file) {
+	MessageDigest digest = createDigest();
+	byte[] buffer = new byte[1 << 16];
+	try (InputStream in = Files.newInputStream(file)) {
+	    int read;
+	    while ((read = in.read(buffer)) > 0) {
+		digest.update(buffer, 0, read);
+	    }
+	} catch (IOException e) {
+	    throw new RuntimeException("Failed to hash " + file, e);
+	}
+	return toHex(digest.digest());
+    }
+
+    /**
+     * @param key the artifact key
+     * @return the main file of the artifact in the cache, or null if it is
+     *         not cached
+     * @throws IOException
+     */
+    public Path lookup(String key) throws IOException {
+	Path marker = root.resolve(key).resolve(MARKER_FILENAME);
+	if (!Files.exists(marker)) {
+	    return null;
+	}
+	// the marker modification time is the last access of the entry
+	Files.setLastModifiedTime(marker,
+		FileTime.fromMillis(System.currentTimeMillis()));
+	String mainFile = new String(Files.readAllBytes(marker),
+		StandardCharsets.UTF_8);
+	return root.resolve(key).resolve(mainFile);
+    }
+
+    /**
+     * Returns the main file of the artifact from the cache, producing it
+     * first if it is not cached.
+     *
+     * @param key      the artifact key
+     * @param producer writes the artifact files if it is not cached
+     * @return the main file of the artifact in the cache
+     * @throws IOException
+     */
+    public Path getOrCreate(String key, Producer producer)
+	    throws IOException {
+	Path cached = lookup(key);
+	if (cached != null) {
+	    System.out.println("Using cached artifact " + cached);
+	    return cached;
+	}
+	Path tempDir = createTempDir();
+	try {
+	    Path mainFile = producer.produce(tempDir);
+	    return store(key, tempDir, mainFile);
+	} finally {
+	    deleteDirectory(tempDir);
+	}
+    }
+
+    /**
+     * Moves the files of an artifact into the cache, all the files in the
+     * given directory are moved (and the directory is removed).
+     *
+     * @param key      the artifact key
+     * @param dir      a directory holding only the artifact files, created
+     *                 by {@link #createTempDir()}
+     * @param mainFile the main file of the artifact, inside dir
+     * @return the main file of the artifact in the cache
+     * @throws IOException
+     */
+    public Path store(String key, Path dir, Path mainFile)
+	    throws IOException {
+	String mainFilename = mainFile.getFileName().toString();
+	long entrySize = size(dir);
+	// the files are linked out of the cache, a write through a link would
+	// change the entry
+	try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+	    for (Path file : files) {
+		file.toFile().setReadOnly();
+	    }
+	}
+	Files.write(dir.resolve(SIZE_FILENAME),
+		Long.toString(entrySize).getBytes(StandardCharsets.UTF_8));
+	Files.write(dir.resolve(MARKER_FILENAME),
+		mainFilename.getBytes(StandardCharsets.UTF_8));
+	Path entry = root.resolve(key);
+	long added = entrySize;
+	try {
+	    Files.move(dir, entry, StandardCopyOption.ATOMIC_MOVE);
+	} catch (FileAlreadyExistsException e) {
+	    // another process stored the same artifact meanwhile
+	    deleteDirectory(dir);
+	    added = 0;
+	} catch (IOException e) {
+	    if (!Files.exists(entry.resolve(MARKER_FILENAME))) {
+		throw e;
+	    }
+	    deleteDirectory(dir);
+	    added = 0;
+	}
+	addSize(key, added);
+	return entry.resolve(mainFilename);
+    }
+
+    /**
+     * @return a new empty directory inside the cache, for producing artifacts
+     * @throws IOException
+     */
+    public Path createTempDir() throws IOException {
+	Files.createDirectories(root);
+	return Files.createDirectory(
+		root.resolve(TEMP_PREFIX + UUID.randomUUID()));
+    }
+
+    /**
+     * Links all the files of a cached artifact into a directory, keeping
+     * their names. Existing files are replaced.
+     *
+     * @param cachedMainFile the main file of the artifact in the cache
+     * @param dir            the directory to link the files into
+     * @return the linked main file
+     * @throws IOException
+     */
+    public static Path linkToDir(Path cachedMainFile, Path dir)
+	    throws IOException {
+	Files.createDirectories(dir);
+	try (DirectoryStream<Path> files = Files
+		.newDirectoryStream(cachedMainFile.getParent())) {
+	    for (Path file : files) {
+		String name = file.getFileName().toString();
+		if (!name.equals(MARKER_FILENAME)
+			&& !name.equals(SIZE_FILENAME)) {
+		    linkFile(file, dir.resolve(file.getFileName()));
+		}
+	    }
+	}
+	return dir.resolve(cachedMainFile.getFileName());
+    }
+
+    private static void linkFile(Path source, Path target)
+	    throws IOException {
+	Files.deleteIfExists(target);
+	try {
+	    Files.createLink(target, source);
+	} catch (IOException | UnsupportedOperationException e) {
+	    Files.copy(source, target);
+	    // a copy is not shared with the cache
+	    target.toFile().setWritable(true);
+	}
+    }
+
+    /**
+     * Removes an output file before it is written again, so a file linked
+     * out of the cache is replaced rather than written through the link
+     * (which would fail, the cached files are read-only).
+     *
+     * @param file the file about to be written
+     * @throws IOException
+     */
+    public static void unlinkOutput(Path file) throws IOException {
+	Files.deleteIfExists(file);
+    }
+
+    /*
+     * add a stored entry to the running size, the entries are listed (and
+     * evicted if needed) only the first time and when the size passes the
+     * maximum
+     */
+    private synchronized void addSize(String keepKey, long added)
+	    throws IOException {
+	if (totalSize >= 0 && totalSize + added <= maxSize) {
+	    totalSize += added;
+	    return;
+	}
+	evict(keepKey);
+    }
+
+    /*
+     * delete the least recently used entries until the cache is within its
+     * maximal size, the entry of keepKey is never deleted
+     */
+    private void evict(String keepKey) throws IOException {
+	List<Path> entries = new ArrayList<>();
+	Map<Path, Long> sizes = new HashMap<>();
+	totalSize = 0;
+	try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+	    for (Path entry : dirs) {
+		if (!entry.getFileName().toString().startsWith(TEMP_PREFIX)
+			&& Files.exists(entry.resolve(MARKER_FILENAME))) {
+		    entries.add(entry);
+		    sizes.put(entry, entrySize(entry));
+		    totalSize += sizes.get(entry);
+		}
+	    }
+	}
+	if (totalSize <= maxSize) {
+	    return;
+	}
+	entries.sort(Comparator.comparing(ArtifactCache::lastAccess));
+	for (Path entry : entries) {
+	    if (totalSize <= maxSize) {
+		break;
+	    }
+	    if (entry.getFileName().toString().equals(keepKey)) {
+		continue;
+	    }
+	    System.out.println("Evicting cached artifact " + entry);
+	    deleteDirectory(entry);
+	    totalSize -= sizes.get(entry);
+	}
+    }
+
+    /*
+     * the size written into the entry when it was stored, entries of older
+     * versions are measured
+     */
+    private static long entrySize(Path entry) throws IOException {
+	try {
+	    return Long.parseLong(new String(
+		    Files.readAllBytes(entry.resolve(SIZE_FILENAME)),
+		    StandardCharsets.UTF_8));
+	} catch (IOException | NumberFormatException e) {
+	    return size(entry);
+	}
+    }
+
+    private static FileTime lastAccess(Path entry) {
+	try {
+	    return Files.getLastModifiedTime(entry.resolve(MARKER_FILENAME));
+	} catch (IOException e) {
+	    return FileTime.fromMillis(0);
+	}
+    }
+
+    private static long size(Path dir) throws IOException {
+	try (Stream<Path> files = Files.walk(dir)) {
+	    return files.filter(Files::isRegularFile).mapToLong(file -> {
+		try {
+		    return Files.size(file);
+		} catch (IOException e) {
+		    return 0;
+		}
+	    }).sum();
+	}
+    }
+
+    /**
+     * delete a directory with all its content, e.g. a temporary directory
+     * @param dir the directory to delete
+     * @throws IOException
+     */
+    public static void deleteDirectory(Path dir) throws IOException {
+	if (!Files.exists(dir)) {
+	    return;
+	}
+	try (Stream<Path> files = Files.walk(dir)) {
+	    for (Path file : (Iterable<Path>) files
+		    .sorted(Comparator.reverseOrder())::iterator) {
+		// read-only files can not be deleted on some platforms
+		file.toFile().setWritable(true);
+		Files.deleteIfExists(file);
+	    }
+	}
+    }
+
+    /*
+     * "ClassName{field=value;...}" with the public fields sorted by name
+     */
+    private static String describeStruct(Object struct) {
+	Field[] fields = struct.getClass().getFields();
+	Arrays.sort(fields, Comparator.comparing(Field::getName));
+	StringBuilder description = new StringBuilder(
+		struct.getClass().getName()).append('{');
+	for (Field field : fields) {
+	    if (Modifier.isStatic(field.getModifiers())) {
+		continue;
+	    }
+	    try {
+		description.append(field.getName()).append('=')
+			.append(field.get(struct)).append(';');
+	    } catch (IllegalAccessException e) {
+		throw new RuntimeException(e);
+	    }
+	}
+	return description.append('}').toString();
+    }
+
+    private static MessageDigest createDigest() {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    private static void update(MessageDigest digest, String part) {
+	byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+	// prefix the length so the parts boundaries are part of the hash
+	digest.update(Integer.toString(bytes.length).getBytes(
+		StandardCharsets.UTF_8));
+	digest.update((byte) ':');
+	digest.update(bytes);
+    }
+
+    /*
+     * the hash of a file content and the file state it was computed for
+     */
+    private static class FileHash {
+	final long size;
+	final FileTime modified;
+	final String hash;
+
+	FileHash(long size, FileTime modified, String hash) {
+	    this.size = size;
+	    this.modified = modified;
+	    this.hash = hash;
+	}
+    }
+
+    private static String toHex(byte[] bytes) {
+	StringBuilder hex = new StringBuilder(bytes.length * 2);
+	for (byte b : bytes) {
+	    hex.append(String.format("%02x", b));
+	}
+	return hex.toString();
+    }
+}
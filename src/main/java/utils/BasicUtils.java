@@ -6,24 +6,24 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
 
-import org.apache.commons.math3.random.JDKRandomGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
 
 public class BasicUtils {
 
-    protected final static int CONSTANT_SEED = 504000;
+    public final static int CONSTANT_SEED = 504000;
 
-    protected static JDKRandomGenerator uniformSampler = null;
-
-    public static JDKRandomGenerator getUniformRandomGenerator() {
-	if (uniformSampler == null) {
-	    uniformSampler = new JDKRandomGenerator(CONSTANT_SEED);
-	}
-	return uniformSampler;
+    /*
+     * The random stream of the current thread, from the seed of the run
+     * (see RandomStreams)
+     */
+    public static RandomGenerator getUniformRandomGenerator() {
+	return RandomStreams.forCurrentThread();
     }
 
     /**
@@ -34,7 +34,15 @@ public class BasicUtils {
      * @return a random number within the window
      */
     public static double randInWindow(double base, double window) {
-	return base + (window * getUniformRandomGenerator().nextDouble());
+	return randInWindow(getUniformRandomGenerator(), base, window);
+    }
+
+    /*
+     * The same as above but draws from the given random stream
+     */
+    public static double randInWindow(RandomGenerator random, double base,
+	    double window) {
+	return base + (window * random.nextDouble());
     }
 
     /**
@@ -45,11 +53,23 @@ public class BasicUtils {
      * @return a random number within the window
      */
     public static double randAroundBase(double base, double delta) {
-	return randInWindow(base - delta, delta * 2);
+	return randAroundBase(getUniformRandomGenerator(), base, delta);
+    }
+
+    /*
+     * The same as above but draws from the given random stream
+     */
+    public static double randAroundBase(RandomGenerator random, double base,
+	    double delta) {
+	return randInWindow(random, base - delta, delta * 2);
     }
 
     public static <T> T chooseRand(T[] arr) {
-	int index = getUniformRandomGenerator().nextInt(arr.length);
+	return chooseRand(getUniformRandomGenerator(), arr);
+    }
+
+    public static <T> T chooseRand(RandomGenerator random, T[] arr) {
+	int index = random.nextInt(arr.length);
 	return arr[index];
     }
 
@@ -111,7 +131,8 @@ public class BasicUtils {
      */
     public static Path copyFiletoDir(Path file, Path dir) throws IOException {
 	Path target = dir.resolve(file.getFileName());
-	Files.copy(file, target);
+	// replace, a retried scenario copies its files again
+	Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
 	return target;
     }
 
@@ -0,0 +1,102 @@
+package utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The building blocks shared by the binary formats of the project (the
+ * network and the population binaries), so the formats read and write them
+ * the same way.
+ *
+ * A string table is the number of strings, their byte lengths and then all
+ * the UTF-8 bytes one after the other.
+ */
+public class BinaryFiles {
+
+    /**
+     * map a whole file to memory
+     *
+     * @param filename the file to map
+     * @return a read only buffer of the file content
+     * @throws IOException if the file cannot be read or is larger than 2GB
+     */
+    public static ByteBuffer map(String filename) throws IOException {
+	FileChannel channel = FileChannel.open(Paths.get(filename),
+		StandardOpenOption.READ);
+	try {
+	    if (channel.size() > Integer.MAX_VALUE) {
+		throw new IOException(
+			filename + " is too large to be memory-mapped");
+	    }
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+		    channel.size());
+	} finally {
+	    // the mapping stays valid after the channel is closed
+	    channel.close();
+	}
+    }
+
+    /**
+     * @param out     the stream to write to
+     * @param strings the strings of the table
+     * @throws IOException
+     */
+    public static void writeStringTable(DataOutputStream out,
+	    String[] strings) throws IOException {
+	byte[][] bytes = new byte[strings.length][];
+	out.writeInt(strings.length);
+	for (int i = 0; i < strings.length; i++) {
+	    bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+	    out.writeInt(bytes[i].length);
+	}
+	for (byte[] b : bytes) {
+	    out.write(b);
+	}
+    }
+
+    /**
+     * @param buffer the buffer positioned at the table, positioned after it
+     *               on return
+     * @return the strings of the table
+     */
+    public static String[] readStringTable(ByteBuffer buffer) {
+	int size = buffer.getInt();
+	int[] lengths = new int[size];
+	buffer.asIntBuffer().get(lengths);
+	buffer.position(buffer.position() + size * Integer.BYTES);
+	String[] strings = new String[size];
+	byte[] bytes = new byte[64];
+	for (int i = 0; i < size; i++) {
+	    if (bytes.length < lengths[i]) {
+		bytes = new byte[Math.max(lengths[i], bytes.length * 2)];
+	    }
+	    buffer.get(bytes, 0, lengths[i]);
+	    strings[i] = new String(bytes, 0, lengths[i],
+		    StandardCharsets.UTF_8);
+	}
+	return strings;
+    }
+
+    /**
+     * read a string table of a known size
+     *
+     * @param buffer       the buffer positioned at the table
+     * @param expectedSize the number of strings the table should have
+     * @return the strings of the table
+     * @throws IOException if the table has another number of strings
+     */
+    public static String[] readStringTable(ByteBuffer buffer,
+	    int expectedSize) throws IOException {
+	int size = buffer.getInt(buffer.position());
+	if (size != expectedSize) {
+	    throw new IOException("Corrupted binary file, expected "
+		    + expectedSize + " strings but found " + size);
+	}
+	return readStringTable(buffer);
+    }
+}
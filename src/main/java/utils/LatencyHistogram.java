@@ -0,0 +1,116 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies with a bounded relative error (in the spirit of
+ * HdrHistogram): the values are counted in buckets of 2^SUB_BUCKET_BITS
+ * linear sub buckets per power of two, so a value is reported within about
+ * 3% of its real value with a fixed, small memory no matter how many values
+ * are recorded.
+ *
+ * Not thread safe, each recording thread should use its own histogram.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1)
+	    * SUB_BUCKETS];
+    private long totalCount = 0;
+    private long totalValue = 0;
+    private long maxValue = 0;
+
+    /**
+     * @param value a non negative value, e.g. a latency in microseconds
+     */
+    public void record(long value) {
+	value = Math.max(0, value);
+	counts[bucketIndex(value)]++;
+	totalCount++;
+	totalValue += value;
+	maxValue = Math.max(maxValue, value);
+    }
+
+    public void reset() {
+	Arrays.fill(counts, 0);
+	totalCount = 0;
+	totalValue = 0;
+	maxValue = 0;
+    }
+
+    public long getCount() {
+	return totalCount;
+    }
+
+    public long getMax() {
+	return maxValue;
+    }
+
+    public double getMean() {
+	return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding the percentile, 0 if
+     *         the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+	if (totalCount == 0) {
+	    return 0;
+	}
+	long rank = (long) Math.ceil(percentile / 100 * totalCount);
+	rank = Math.max(1, Math.min(rank, totalCount));
+	long seen = 0;
+	for (int i = 0; i < counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= rank) {
+		return Math.min(bucketUpperBound(i), maxValue);
+	    }
+	}
+	return maxValue;
+    }
+
+    /**
+     * @return the number of buckets, for iterating with
+     *         {@link #getBucketCount(int)}
+     */
+    public int getNumOfBuckets() {
+	return counts.length;
+    }
+
+    public long getBucketCount(int bucket) {
+	return counts[bucket];
+    }
+
+    /**
+     * @param bucket a bucket index
+     * @return the highest value counted in the bucket
+     */
+    public static long bucketUpperBound(int bucket) {
+	int exponent = bucket >> SUB_BUCKET_BITS;
+	long subBucket = bucket & (SUB_BUCKETS - 1);
+	if (exponent == 0) {
+	    return subBucket;
+	}
+	int shift = exponent - 1;
+	long lowerBound = (SUB_BUCKETS + subBucket) << shift;
+	return lowerBound + (1L << shift) - 1;
+    }
+
+    /*
+     * values below SUB_BUCKETS are counted exactly, higher values by their
+     * most significant SUB_BUCKET_BITS + 1 bits
+     */
+    private static int bucketIndex(long value) {
+	if (value < SUB_BUCKETS) {
+	    return (int) value;
+	}
+	int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+	int exponent = shift + 1;
+	int subBucket = (int) (value >> shift) - SUB_BUCKETS;
+	return (exponent << SUB_BUCKET_BITS) + subBucket;
+    }
+}
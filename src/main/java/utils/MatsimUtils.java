@@ -1,12 +1,26 @@
 package utils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+
+import syncity.network.NetworkBinary;
 
 public class MatsimUtils {
     /*
@@ -29,10 +43,76 @@ public class MatsimUtils {
 	return filename;
     }
 
+    /*
+     * reads a network file, binary networks (see NetworkBinary) are read
+     * directly, and for a network xml an up to date binary copy next to it
+     * (the xml filename + ".bin") is preferred, since it loads much faster
+     */
+    public static Network readNetwork(String filename) {
+	String binary = filename;
+	if (!filename.endsWith(NetworkBinary.FILE_EXTENSION)) {
+	    binary = filename + NetworkBinary.FILE_EXTENSION;
+	    File binaryFile = new File(binary);
+	    if (!binaryFile.isFile() || binaryFile.lastModified() < new File(
+		    filename).lastModified()) {
+		return NetworkUtils.readNetwork(filename);
+	    }
+	}
+	try {
+	    return NetworkBinary.readNetworkBinary(binary);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /*
+     * reads only the network of the config, without loading the whole
+     * scenario, an empty network is returned if no network file is set
+     */
+    public static Network readNetwork(Config config) {
+	if (config.network().getInputFile() == null) {
+	    return NetworkUtils.createNetwork();
+	}
+	URL url = config.network().getInputFileURL(config.getContext());
+	if (!"file".equals(url.getProtocol())) {
+	    Network network = NetworkUtils.createNetwork();
+	    new MatsimNetworkReader(network).parse(url);
+	    return network;
+	}
+	try {
+	    return readNetwork(Paths.get(url.toURI()).toString());
+	} catch (URISyntaxException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    /*
+     * reads only the population of the config, without loading the whole
+     * scenario, an empty population is returned if no plans file is set
+     */
+    public static Population readPopulation(Config config) {
+	Scenario scenario = ScenarioUtils.createScenario(config);
+	if (config.plans().getInputFile() != null) {
+	    new PopulationReader(scenario)
+		    .parse(config.plans().getInputFileURL(config.getContext()));
+	}
+	return scenario.getPopulation();
+    }
+
+    /*
+     * reads a plans file, without loading the whole scenario
+     */
+    public static Population readPopulation(String filename) {
+	Scenario scenario = ScenarioUtils
+		.createScenario(ConfigUtils.createConfig());
+	new PopulationReader(scenario).readFile(filename);
+	return scenario.getPopulation();
+    }
+
     /*
      * Euclidean distance between two nodes
      */
     public static double nodesDistance(Node nodeA, Node nodeB) {
-        return NetworkUtils.getEuclideanDistance(nodeA.getCoord(), nodeB.getCoord());
+	return NetworkUtils.getEuclideanDistance(nodeA.getCoord(), nodeB.getCoord());
     }
 }
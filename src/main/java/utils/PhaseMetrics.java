@@ -0,0 +1,243 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the phases of a run: wall time, process CPU time, allocated
+ * bytes and peak heap. A phase is measured from {@link #start(String)} until
+ * it is closed, and may hold nested phases (named "outer.inner").
+ *
+ * The measures are of the whole JVM: the CPU time is of all the threads, the
+ * allocated bytes are of the threads alive at the end of the phase (threads
+ * that finished during the phase are missed) and the peak heap is the sum of
+ * the peaks of the heap pools. The phases are written to a csv every time a
+ * top level phase is closed, so the phases that finished are kept even if
+ * the run fails.
+ */
+public class PhaseMetrics {
+
+    public static final String HEADER = "Phase;WallTime[s];CpuTime[s];Allocated[MB];PeakHeap[MB]";
+
+    /**
+     * A running phase, closing it records its measures
+     */
+    public class Phase implements AutoCloseable {
+	private final String name;
+	private final Phase parent;
+	private final long startWallTime;
+	private final long startCpuTime;
+	private final Map<Long, Long> startAllocated;
+	private long peakHeap = 0;
+	private boolean closed = false;
+
+	private Phase(String name, Phase parent) {
+	    this.name = name;
+	    this.parent = parent;
+	    if (parent != null) {
+		// the nested phase resets the peaks, keep the peak so far
+		parent.peakHeap = Math.max(parent.peakHeap, getPeakHeap());
+	    }
+	    resetPeakHeap();
+	    startAllocated = getAllocatedBytes();
+	    startCpuTime = getProcessCpuTime();
+	    startWallTime = System.nanoTime();
+	}
+
+	@Override
+	public void close() {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    long wallTime = System.nanoTime() - startWallTime;
+	    long cpuTime = getProcessCpuTime() - startCpuTime;
+	    long allocated = 0;
+	    for (Map.Entry<Long, Long> thread : getAllocatedBytes()
+		    .entrySet()) {
+		allocated += thread.getValue()
+			- startAllocated.getOrDefault(thread.getKey(), 0L);
+	    }
+	    peakHeap = Math.max(peakHeap, getPeakHeap());
+	    if (parent != null) {
+		parent.peakHeap = Math.max(parent.peakHeap, peakHeap);
+	    }
+	    synchronized (PhaseMetrics.this) {
+		records.add(new Record(name, wallTime, cpuTime, allocated,
+			peakHeap));
+		// nested phases left open (e.g. by an exception) end here too
+		Phase last;
+		do {
+		    last = openPhases.pollLast();
+		} while (last != null && last != this);
+		if (parent == null && file != null) {
+		    write(file);
+		}
+	    }
+	}
+    }
+
+    /**
+     * The measures of a closed phase
+     */
+    public static class Record {
+	public final String phase;
+	public final long wallTime; // [ns]
+	public final long cpuTime; // [ns]
+	public final long allocated; // [bytes]
+	public final long peakHeap; // [bytes]
+
+	public Record(String phase, long wallTime, long cpuTime,
+		long allocated, long peakHeap) {
+	    this.phase = phase;
+	    this.wallTime = wallTime;
+	    this.cpuTime = cpuTime;
+	    this.allocated = allocated;
+	    this.peakHeap = peakHeap;
+	}
+
+	public String toCsvLine() {
+	    return String.format(Locale.ROOT, "%s;%.3f;%.3f;%.1f;%.1f", phase,
+		    wallTime / 1e9, cpuTime / 1e9, allocated / 1048576.0,
+		    peakHeap / 1048576.0);
+	}
+    }
+
+    private final Path file;
+    private final List<Record> records = new ArrayList<>();
+    private final Deque<Phase> openPhases = new ArrayDeque<>();
+
+    /**
+     * @param file the csv to write the phases to, null to keep them only in
+     *             memory
+     */
+    public PhaseMetrics(Path file) {
+	this.file = file;
+    }
+
+    /**
+     * start a phase, nested in the innermost open phase
+     *
+     * @param name the name of the phase
+     * @return the phase, to close when it ends (e.g. in try-with-resources)
+     */
+    public synchronized Phase start(String name) {
+	Phase parent = openPhases.peekLast();
+	Phase phase = new Phase(
+		parent == null ? name : parent.name + "." + name, parent);
+	openPhases.addLast(phase);
+	return phase;
+    }
+
+    /**
+     * @return the closed phases, by the order they were closed
+     */
+    public synchronized List<Record> getRecords() {
+	return new ArrayList<>(records);
+    }
+
+    /**
+     * write the closed phases to a csv
+     *
+     * @param file the csv to write
+     */
+    public synchronized void write(Path file) {
+	try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+	    writer.write(HEADER + "\n");
+	    for (Record record : records) {
+		writer.write(record.toCsvLine() + "\n");
+	    }
+	} catch (IOException e) {
+	    // the metrics should not fail the run
+	    System.err.println("Failed to write phase metrics to " + file
+		    + ": " + e);
+	}
+    }
+
+    /**
+     * Write the phases of several runs to one csv, each line prefixed by the
+     * name of its run
+     *
+     * @param metricsFiles the phases csv of each run by the run name, runs
+     *                     without a csv are skipped
+     * @param file         the summary csv to write
+     * @throws IOException
+     */
+    public static void writeSummary(Map<String, Path> metricsFiles, Path file)
+	    throws IOException {
+	try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+	    writer.write("Run;" + HEADER + "\n");
+	    for (Map.Entry<String, Path> run : metricsFiles.entrySet()) {
+		if (!Files.isRegularFile(run.getValue())) {
+		    continue;
+		}
+		List<String> lines = Files.readAllLines(run.getValue());
+		for (String line : lines.subList(1, lines.size())) {
+		    writer.write(run.getKey() + ";" + line + "\n");
+		}
+	    }
+	}
+	System.out.println("Wrote phase metrics summary to:  " + file);
+    }
+
+    private static long getProcessCpuTime() {
+	OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	if (os instanceof com.sun.management.OperatingSystemMXBean) {
+	    return ((com.sun.management.OperatingSystemMXBean) os)
+		    .getProcessCpuTime();
+	}
+	return 0;
+    }
+
+    /*
+     * the bytes allocated by every live thread so far, by thread id
+     */
+    private static Map<Long, Long> getAllocatedBytes() {
+	Map<Long, Long> allocated = new HashMap<>();
+	ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+	    return allocated;
+	}
+	long[] ids = threads.getAllThreadIds();
+	long[] bytes = ((com.sun.management.ThreadMXBean) threads)
+		.getThreadAllocatedBytes(ids);
+	for (int i = 0; i < ids.length; i++) {
+	    if (bytes[i] >= 0) {
+		allocated.put(ids[i], bytes[i]);
+	    }
+	}
+	return allocated;
+    }
+
+    private static long getPeakHeap() {
+	long peak = 0;
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP) {
+		peak += pool.getPeakUsage().getUsed();
+	    }
+	}
+	return peak;
+    }
+
+    private static void resetPeakHeap() {
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP) {
+		pool.resetPeakUsage();
+	    }
+	}
+    }
+}
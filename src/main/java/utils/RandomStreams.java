@@ -0,0 +1,168 @@
+package utils;
+
+import java.util.SplittableRandom;
+
+import org.apache.commons.math3.random.AbstractRandomGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * Independent and reproducible random streams.
+ *
+ * A stream is identified by a seed, the name of the component that uses it
+ * (e.g. "grid") and an index inside that component (e.g. a tile number), so
+ * the values it produces do not depend on the order or the thread in which
+ * the streams are consumed.
+ *
+ * The seed of the run is {@link BasicUtils#CONSTANT_SEED} unless it is given
+ * with the "syncity.seed" system property or {@link #setSeed(long)}, the
+ * generators take their default seed from it.
+ */
+public class RandomStreams {
+
+    public static final String SEED_PROPERTY = "syncity.seed";
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    // name of the per thread streams
+    private static final String THREAD_COMPONENT = "thread";
+
+    private static volatile long seed = Long.getLong(SEED_PROPERTY,
+	    BasicUtils.CONSTANT_SEED);
+    // bumped by setSeed, the thread streams of older generations restart
+    private static volatile int generation = 0;
+    // the index of the next thread asking for its stream in this generation
+    private static long nextThreadIndex = 0;
+    private static final ThreadLocal<ThreadStream> threadStreams = new ThreadLocal<>();
+
+    /**
+     * @return the seed of the run
+     */
+    public static long getSeed() {
+	return seed;
+    }
+
+    /**
+     * set the seed of the run, the per thread streams are restarted from
+     * the new seed (even if it is the same seed) and the threads are
+     * numbered again (notice generators created before keep their seed)
+     * 
+     * @param newSeed the new seed
+     */
+    public static synchronized void setSeed(long newSeed) {
+	seed = newSeed;
+	nextThreadIndex = 0;
+	generation++;
+    }
+
+    /**
+     * create the random stream of {@code index} in {@code component} from
+     * the seed of the run
+     */
+    public static RandomGenerator create(String component, long index) {
+	return create(seed, component, index);
+    }
+
+    /**
+     * create the random stream of {@code index} in {@code component}
+     *
+     * @param seed      the base seed of the run
+     * @param component the name of the component using the stream
+     * @param index     the index of the stream inside the component
+     * @return a generator that is independent of all other streams
+     */
+    public static RandomGenerator create(long seed, String component,
+	    long index) {
+	long componentSeed = mix64(seed ^ mix64(component.hashCode()));
+	return new SplittableRandomGenerator(
+		mix64(componentSeed + GOLDEN_GAMMA * (index + 1)));
+    }
+
+    /**
+     * The sequential stream of the current thread, for code that does not
+     * split its work to streams of its own. The threads are numbered by the
+     * order they first ask for a stream, so a single threaded run is
+     * reproducible, parallel code should use {@link #create} instead.
+     * 
+     * @return the stream of the current thread
+     */
+    public static RandomGenerator forCurrentThread() {
+	ThreadStream stream = threadStreams.get();
+	if (stream == null || stream.generation != generation) {
+	    stream = nextThreadStream();
+	    threadStreams.set(stream);
+	}
+	return stream.random;
+    }
+
+    private static synchronized ThreadStream nextThreadStream() {
+	return new ThreadStream(generation,
+		create(seed, THREAD_COMPONENT, nextThreadIndex++));
+    }
+
+    /*
+     * a thread stream and the generation of the seed it was created in
+     */
+    private static class ThreadStream {
+	final int generation;
+	final RandomGenerator random;
+
+	ThreadStream(int generation, RandomGenerator random) {
+	    this.generation = generation;
+	    this.random = random;
+	}
+    }
+
+    /*
+     * the 64 bit finalizer of SplittableRandom (Stafford's variant 13)
+     */
+    private static long mix64(long z) {
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
+    /**
+     * Adapts {@link SplittableRandom} to the commons-math
+     * {@link RandomGenerator} used across the project. It is cheap to create
+     * so a stream can be created per tile or even per agent.
+     */
+    public static class SplittableRandomGenerator
+	    extends AbstractRandomGenerator {
+
+	private SplittableRandom random;
+
+	public SplittableRandomGenerator(long seed) {
+	    setSeed(seed);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+	    this.random = new SplittableRandom(seed);
+	    clear();
+	}
+
+	@Override
+	public double nextDouble() {
+	    return random.nextDouble();
+	}
+
+	@Override
+	public int nextInt() {
+	    return random.nextInt();
+	}
+
+	@Override
+	public int nextInt(int n) {
+	    return random.nextInt(n);
+	}
+
+	@Override
+	public long nextLong() {
+	    return random.nextLong();
+	}
+
+	@Override
+	public boolean nextBoolean() {
+	    return random.nextBoolean();
+	}
+    }
+}
@@ -0,0 +1,335 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.scenario.MutableScenario;
+import org.matsim.core.scenario.ScenarioUtils;
+
+/**
+ * Keeps the networks and populations loaded in this JVM, so the phases of a
+ * scenario creator (the fleet placement, the preparers and the simulation)
+ * do not parse the same xml again.
+ *
+ * The loaded objects are kept by the SHA-256 of their file content, so a
+ * copy or a link of a file is a hit too, and a file that was rewritten with
+ * a different content is read again. The hash of a path is computed again
+ * only when its size or modification time changes.
+ *
+ * The objects returned by the get methods are shared, and must not be
+ * modified. Code that modifies a network or a population (e.g. the Amodeus
+ * preparers and the simulation) takes it out of the context with the take
+ * methods, and may put it back once it is written to a file.
+ *
+ * The context holds what it loaded until it is cleared, the scenario
+ * creators clear it when their run ends, so nothing is shared between
+ * creators (the cells of an experiment run in JVMs of their own anyway).
+ * One-off readers (e.g. analysis tools) should read the files directly with
+ * {@link MatsimUtils}.
+ */
+public enum ScenarioContext {
+    INSTANCE;
+
+    private static final Logger log = Logger.getLogger(ScenarioContext.class);
+
+    /*
+     * the content hash of a path, valid while the file keeps its size and
+     * modification time
+     */
+    private static class FileState {
+	final long size;
+	final long lastModified;
+	final String hash;
+
+	FileState(long size, long lastModified, String hash) {
+	    this.size = size;
+	    this.lastModified = lastModified;
+	    this.hash = hash;
+	}
+    }
+
+    private final Map<Path, FileState> fileStates = new HashMap<>();
+    private final Map<String, Network> networks = new HashMap<>();
+    private final Map<String, Population> populations = new HashMap<>();
+
+    /**
+     * @param filename a network file, xml or binary
+     * @return the shared network of the file, read only if it is not loaded
+     */
+    public synchronized Network getNetwork(String filename) {
+	String hash = hash(filename);
+	Network network = networks.get(hash);
+	if (network == null) {
+	    network = MatsimUtils.readNetwork(filename);
+	    networks.put(hash, network);
+	} else {
+	    log.info("Using the loaded network of " + filename);
+	}
+	return network;
+    }
+
+    /**
+     * @param filename a network file, xml or binary
+     * @return the network of the file, for the caller to modify
+     */
+    public synchronized Network takeNetwork(String filename) {
+	Network network = networks.remove(hash(filename));
+	if (network == null) {
+	    return MatsimUtils.readNetwork(filename);
+	}
+	log.info("Taking the loaded network of " + filename);
+	return network;
+    }
+
+    /**
+     * @param filename a plans file
+     * @return the shared population of the file, read only if it is not
+     *         loaded
+     */
+    public synchronized Population getPopulation(String filename) {
+	String hash = hash(filename);
+	Population population = populations.get(hash);
+	if (population == null) {
+	    population = readPopulation(filename, ConfigUtils.createConfig());
+	    populations.put(hash, population);
+	} else {
+	    log.info("Using the loaded population of " + filename);
+	}
+	return population;
+    }
+
+    /**
+     * @param filename a plans file
+     * @return the population of the file, for the caller to modify
+     */
+    public synchronized Population takePopulation(String filename) {
+	return takePopulation(filename, ConfigUtils.createConfig());
+    }
+
+    /**
+     * keep a network that was just written to a file (or read from it)
+     *
+     * @param filename the file holding the network, nothing is kept if null
+     * @param network  the network, it is shared from now on
+     */
+    public synchronized void putNetwork(String filename, Network network) {
+	if (filename != null) {
+	    networks.put(hash(filename), network);
+	}
+    }
+
+    /**
+     * keep a population that was just written to a file (or read from it)
+     *
+     * @param filename   the file holding the population, nothing is kept if
+     *                   null
+     * @param population the population, it is shared from now on
+     */
+    public synchronized void putPopulation(String filename,
+	    Population population) {
+	if (filename != null) {
+	    populations.put(hash(filename), population);
+	}
+    }
+
+    /**
+     * The network file of a config, as {@link MatsimUtils#readNetwork(Config)}
+     * but through the context.
+     *
+     * @param config the config
+     * @return the shared network of the config
+     */
+    public Network getNetwork(Config config) {
+	String filename = getNetworkFile(config);
+	if (filename == null) {
+	    return MatsimUtils.readNetwork(config);
+	}
+	return getNetwork(filename);
+    }
+
+    /**
+     * The plans file of a config, as {@link MatsimUtils#readPopulation(Config)}
+     * but through the context.
+     *
+     * @param config the config
+     * @return the shared population of the config
+     */
+    public Population getPopulation(Config config) {
+	String filename = getPlansFile(config);
+	if (filename == null) {
+	    return MatsimUtils.readPopulation(config);
+	}
+	return getPopulation(filename);
+    }
+
+    /**
+     * The network file of a config for the caller to modify, as
+     * {@link MatsimUtils#readNetwork(Config)} but through the context.
+     *
+     * @param config the config
+     * @return the network of the config
+     */
+    public Network takeNetwork(Config config) {
+	String filename = getNetworkFile(config);
+	if (filename == null) {
+	    return MatsimUtils.readNetwork(config);
+	}
+	return takeNetwork(filename);
+    }
+
+    /**
+     * The plans file of a config for the caller to modify, as
+     * {@link MatsimUtils#readPopulation(Config)} but through the context.
+     *
+     * @param config the config
+     * @return the population of the config
+     */
+    public Population takePopulation(Config config) {
+	String filename = getPlansFile(config);
+	if (filename == null) {
+	    return MatsimUtils.readPopulation(config);
+	}
+	return takePopulation(filename);
+    }
+
+    /**
+     * Creates the scenario of a config, as ScenarioUtils.loadScenario but
+     * with the network and population of the context. The network of the
+     * scenario is shared and the population is taken (the simulation modifies
+     * the plans). Only the network and the population are loaded.
+     *
+     * @param config the config
+     * @return a new scenario
+     */
+    public Scenario loadScenario(Config config) {
+	return loadScenario(ScenarioUtils.createMutableScenario(config));
+    }
+
+    /**
+     * Loads a created scenario (e.g. one with the route factories of a
+     * contrib), as ScenarioUtils.loadScenario(Scenario) but with the network
+     * and population of the context, as {@link #loadScenario(Config)}.
+     *
+     * @param scenario the created scenario, without a network and a
+     *                 population
+     * @return the scenario
+     */
+    public synchronized Scenario loadScenario(MutableScenario scenario) {
+	Config config = scenario.getConfig();
+	String networkFile = getNetworkFile(config);
+	String plansFile = getPlansFile(config);
+	if (networkFile == null || plansFile == null) {
+	    log.info("The scenario files are not local, loading the scenario");
+	    ScenarioUtils.loadScenario(scenario);
+	    return scenario;
+	}
+	scenario.setNetwork(getNetwork(networkFile));
+	Population population = populations.remove(hash(plansFile));
+	if (population == null) {
+	    // read with the route factories of the scenario
+	    new PopulationReader(scenario).readFile(plansFile);
+	} else {
+	    log.info("Taking the loaded population of " + plansFile);
+	    scenario.setPopulation(population);
+	}
+	return scenario;
+    }
+
+    /**
+     * forget all the loaded networks and populations
+     */
+    public synchronized void clear() {
+	networks.clear();
+	populations.clear();
+	fileStates.clear();
+    }
+
+    private Population takePopulation(String filename, Config config) {
+	Population population = populations.remove(hash(filename));
+	if (population == null) {
+	    return readPopulation(filename, config);
+	}
+	log.info("Taking the loaded population of " + filename);
+	return population;
+    }
+
+    private static Population readPopulation(String filename,
+	    Config config) {
+	Scenario scenario = ScenarioUtils.createScenario(config);
+	new PopulationReader(scenario).readFile(filename);
+	return scenario.getPopulation();
+    }
+
+    /*
+     * the content hash of a file, computed again only if the file changed
+     */
+    private String hash(String filename) {
+	Path path = Paths.get(filename).toAbsolutePath().normalize();
+	try {
+	    long size = Files.size(path);
+	    long lastModified = Files.getLastModifiedTime(path).toMillis();
+	    FileState state = fileStates.get(path);
+	    if (state == null || state.size != size
+		    || state.lastModified != lastModified) {
+		state = new FileState(size, lastModified,
+			ArtifactCache.hashFile(path));
+		fileStates.put(path, state);
+	    }
+	    return state.hash;
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * @param config the config
+     * @return the local network file of the config, null if it is not set
+     *         or not a local file
+     */
+    public static String getNetworkFile(Config config) {
+	if (config.network().getInputFile() == null) {
+	    return null;
+	}
+	return toLocalFile(
+		config.network().getInputFileURL(config.getContext()));
+    }
+
+    /**
+     * @param config the config
+     * @return the local plans file of the config, null if it is not set or
+     *         not a local file
+     */
+    public static String getPlansFile(Config config) {
+	if (config.plans().getInputFile() == null) {
+	    return null;
+	}
+	return toLocalFile(config.plans().getInputFileURL(config.getContext()));
+    }
+
+    private static String toLocalFile(URL url) {
+	if (url == null || !"file".equals(url.getProtocol())) {
+	    return null;
+	}
+	try {
+	    File file = Paths.get(url.toURI()).toFile();
+	    return file.isFile() ? file.toString() : null;
+	} catch (URISyntaxException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+}
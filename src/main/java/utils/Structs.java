@@ -1,5 +1,9 @@
 package utils;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Properties;
+
 public class Structs {
     
     public static class BaseStruct implements Cloneable {
@@ -14,6 +18,68 @@ public class Structs {
 	public Object clone() throws CloneNotSupportedException {
 	    return super.clone();
 	}
+
+	/**
+	 * set a public field from its string value
+	 * @param name the name of the field
+	 * @param value the value, parsed by the type of the field
+	 */
+	public void setField(String name, String value) {
+	    try {
+		Field field = getClass().getField(name);
+		Class<?> type = field.getType();
+		if (type == int.class) {
+		    field.setInt(this, Integer.parseInt(value.trim()));
+		} else if (type == long.class) {
+		    field.setLong(this, Long.parseLong(value.trim()));
+		} else if (type == double.class) {
+		    field.setDouble(this, Double.parseDouble(value.trim()));
+		} else if (type == float.class) {
+		    field.setFloat(this, Float.parseFloat(value.trim()));
+		} else if (type == boolean.class) {
+		    field.setBoolean(this, Boolean.parseBoolean(value.trim()));
+		} else if (type == String.class) {
+		    field.set(this, value);
+		} else {
+		    throw new RuntimeException("Unsupported field type " + type
+			    + " of " + getClass().getSimpleName() + "." + name);
+		}
+	    } catch (NoSuchFieldException | IllegalAccessException e) {
+		throw new RuntimeException("No public field " + name + " in "
+			+ getClass().getSimpleName(), e);
+	    }
+	}
+
+	/**
+	 * write the public fields to properties, the keys are the fields
+	 * names following the prefix
+	 */
+	public void writeTo(Properties properties, String prefix) {
+	    for (Field field : getClass().getFields()) {
+		if (Modifier.isStatic(field.getModifiers())) {
+		    continue;
+		}
+		try {
+		    properties.setProperty(prefix + field.getName(),
+			    String.valueOf(field.get(this)));
+		} catch (IllegalAccessException e) {
+		    throw new RuntimeException(e);
+		}
+	    }
+	}
+
+	/**
+	 * set the public fields from properties written by writeTo, fields
+	 * without a property keep their value
+	 */
+	public void readFrom(Properties properties, String prefix) {
+	    for (Field field : getClass().getFields()) {
+		String value = properties.getProperty(prefix + field.getName());
+		if (value != null && !Modifier.isStatic(field.getModifiers())) {
+		    setField(field.getName(), value);
+		}
+	    }
+	}
     }
 
     public static class DispatcherArguments extends BaseStruct {
@@ -28,6 +94,14 @@ public class Structs {
 	public int seatsPerVehicle = 10;
 	public boolean rejection = true;
 	public boolean rebalance = true;
+	// DRT vehicles start by the homes of the population, not uniformly
+	public boolean demandWeightedFleet = false;
+
+	// simulation threads (see ThreadLayout), non positive for automatic
+	public int numOfQSimThreads = 0;
+	public int numOfGlobalThreads = 0;
+	// 0 for sequential event handling, negative for automatic
+	public int numOfEventsThreads = -1;
     }
 
     public static class PopulationArguments extends BaseStruct {
@@ -36,6 +110,8 @@ public class Structs {
 	// default minimal distance, based on the default value of
 	// "maxBeelineWalkConnectionDistance"
 	public int minHomeWorkDistance = 300; // [m]
+	// maximal home-work distance, non positive for no maximum
+	public int maxHomeWorkDistance = 0; // [m]
 
 	public float leaveHomeTime = 6; // [hr]
 	public float leaveHomeWindowSize = 1; // [hr]
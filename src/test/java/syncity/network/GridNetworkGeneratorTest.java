@@ -0,0 +1,61 @@
+package syncity.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+
+public class GridNetworkGeneratorTest {
+
+    // 600 nodes in 10 tiles, the tiles end in the middle of the streets so
+    // links cross to the neighbour tiles both along and across the streets
+    private static final int STREETS = 20;
+    private static final int AVENUES = 30;
+    private static final int TILE_SIZE = 64;
+
+    @Test
+    public void sameSeedSameNetworkForAnyNumberOfThreads() {
+	Network single = generate(1);
+	Network parallel = generate(4);
+
+	assertEquals(STREETS * AVENUES, single.getNodes().size());
+	assertEquals(
+		4 * STREETS * AVENUES - 2 * STREETS - 2 * AVENUES,
+		single.getLinks().size());
+	assertSameNetwork(single, parallel);
+    }
+
+    private static Network generate(int numOfThreads) {
+	GridNetworkGenerator grid = new GridNetworkGenerator(STREETS,
+		AVENUES);
+	grid.setTileSize(TILE_SIZE);
+	grid.setSeed(7);
+	grid.generateGridNetwork(numOfThreads);
+	return grid.getNetwork();
+    }
+
+    /*
+     * the networks have the same nodes and links, by id, with the same
+     * coordinates and lengths
+     */
+    private static void assertSameNetwork(Network expected, Network actual) {
+	assertEquals(expected.getNodes().size(), actual.getNodes().size());
+	for (Node node : expected.getNodes().values()) {
+	    Node other = actual.getNodes().get(node.getId());
+	    assertNotNull("missing node " + node.getId(), other);
+	    assertEquals(node.getCoord().getX(), other.getCoord().getX(), 0);
+	    assertEquals(node.getCoord().getY(), other.getCoord().getY(), 0);
+	}
+	assertEquals(expected.getLinks().size(), actual.getLinks().size());
+	for (Link link : expected.getLinks().values()) {
+	    Link other = actual.getLinks().get(link.getId());
+	    assertNotNull("missing link " + link.getId(), other);
+	    assertEquals(link.getFromNode().getId(), other.getFromNode().getId());
+	    assertEquals(link.getToNode().getId(), other.getToNode().getId());
+	    assertEquals(link.getLength(), other.getLength(), 0);
+	}
+    }
+}
@@ -0,0 +1,58 @@
+package syncity.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+
+public class NetworkBinaryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheNetworkItWrote() throws IOException {
+	GridNetworkGenerator grid = new GridNetworkGenerator(5, 7);
+	grid.generateGridNetwork();
+	Network network = grid.getNetwork();
+
+	String file = NetworkBinary.writeNetworkBinary(network,
+		new File(folder.getRoot(), "network.bin").getPath());
+	Network read = NetworkBinary.readNetworkBinary(file);
+
+	assertSameNetwork(network, read);
+    }
+
+    /*
+     * the networks have the same nodes and links, by id
+     */
+    static void assertSameNetwork(Network expected, Network actual) {
+	assertEquals(expected.getNodes().size(), actual.getNodes().size());
+	for (Node node : expected.getNodes().values()) {
+	    Node other = actual.getNodes().get(node.getId());
+	    assertNotNull("missing node " + node.getId(), other);
+	    assertEquals(node.getCoord().getX(), other.getCoord().getX(), 0);
+	    assertEquals(node.getCoord().getY(), other.getCoord().getY(), 0);
+	}
+	assertEquals(expected.getLinks().size(), actual.getLinks().size());
+	for (Link link : expected.getLinks().values()) {
+	    Link other = actual.getLinks().get(link.getId());
+	    assertNotNull("missing link " + link.getId(), other);
+	    assertEquals(link.getFromNode().getId(), other.getFromNode().getId());
+	    assertEquals(link.getToNode().getId(), other.getToNode().getId());
+	    assertEquals(link.getLength(), other.getLength(), 0);
+	    assertEquals(link.getCapacity(), other.getCapacity(), 0);
+	    assertEquals(link.getFreespeed(), other.getFreespeed(), 0);
+	    assertEquals(link.getNumberOfLanes(), other.getNumberOfLanes(), 0);
+	    assertEquals(link.getAllowedModes(), other.getAllowedModes());
+	}
+    }
+}
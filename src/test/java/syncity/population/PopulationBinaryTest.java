@@ -0,0 +1,59 @@
+package syncity.population;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.network.GridNetworkGenerator;
+import utils.Structs.PopulationArguments;
+
+public class PopulationBinaryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsThePopulationItWrote() throws IOException {
+	GridNetworkGenerator grid = new GridNetworkGenerator(5, 7);
+	grid.generateGridNetwork();
+	PopulationArguments params = new PopulationArguments();
+	params.popSize = 500;
+	RandomPopulationGenerator generator = new RandomPopulationGenerator(
+		grid.getNetwork(), params);
+	generator.populateNodes();
+	Population population = generator.getPopulation();
+
+	String file = new File(folder.getRoot(), "population.bin").getPath();
+	PopulationBinary.writePopulationBinary(population, file);
+	Population read = PopulationBinary.readPopulationBinary(file);
+
+	// the persons are numbered by their order and the times are floats
+	assertEquals(population.getPersons().size(), read.getPersons().size());
+	Iterator<? extends Person> readPersons = read.getPersons().values()
+		.iterator();
+	for (Person person : population.getPersons().values()) {
+	    Pair<Activity, Activity> homeWork = PersonAnalysis
+		    .getPersonHomeWorkActivities(person);
+	    Pair<Activity, Activity> readHomeWork = PersonAnalysis
+		    .getPersonHomeWorkActivities(readPersons.next());
+	    assertEquals(homeWork.getLeft().getLinkId(),
+		    readHomeWork.getLeft().getLinkId());
+	    assertEquals(homeWork.getRight().getLinkId(),
+		    readHomeWork.getRight().getLinkId());
+	    assertEquals((float) homeWork.getLeft().getEndTime(),
+		    readHomeWork.getLeft().getEndTime(), 0);
+	    assertEquals((float) homeWork.getRight().getEndTime(),
+		    readHomeWork.getRight().getEndTime(), 0);
+	}
+    }
+}
@@ -0,0 +1,138 @@
+package syncity.population;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.population.PopulationCSVLoader.LoadResult;
+import syncity.population.PopulationCSVLoader.MalformedRow;
+
+public class PopulationCSVLoaderTest {
+
+    private static final String HEADER = "fromLinkId,toLinkId,departureTime,returnTime";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsQuotedFields() throws IOException {
+	LoadResult result = load("\n", HEADER,
+		"\"1->2\",\"3,4\",07:30:00,16:00:00",
+		"\"say \"\"hi\"\"\",5,\"08:00\",17:15:30");
+
+	assertEquals(0, result.malformedRows.size());
+	assertPerson(result.population, 0, "1->2", "3,4", 7.5 * 3600, 16 * 3600);
+	assertPerson(result.population, 1, "say \"hi\"", "5", 8 * 3600,
+		17 * 3600 + 15 * 60 + 30);
+    }
+
+    @Test
+    public void readsCrlfLines() throws IOException {
+	LoadResult result = load("\r\n", HEADER, "1,2,07:00:00,16:00:00",
+		"\"3\",4,08:00:00,17:00:00");
+
+	assertEquals(0, result.malformedRows.size());
+	assertEquals(2, result.population.getPersons().size());
+	assertPerson(result.population, 0, "1", "2", 7 * 3600, 16 * 3600);
+	assertPerson(result.population, 1, "3", "4", 8 * 3600, 17 * 3600);
+    }
+
+    @Test
+    public void reportsMalformedRowsAndKeepsTheRest() throws IOException {
+	LoadResult result = load("\n", HEADER,
+		"1,2,07:00:00,16:00:00",
+		"1,2,07:00:00",
+		"1,2,7 am,16:00:00",
+		"\"1,2,07:00:00,16:00:00",
+		",2,07:00:00,16:00:00",
+		"3,4,08:00:00,17:00:00");
+
+	assertEquals(2, result.population.getPersons().size());
+	assertPerson(result.population, 0, "1", "2", 7 * 3600, 16 * 3600);
+	assertPerson(result.population, 1, "3", "4", 8 * 3600, 17 * 3600);
+
+	List<MalformedRow> rows = result.malformedRows;
+	assertEquals(4, rows.size());
+	assertEquals(3, rows.get(0).lineNumber);
+	assertEquals("expected 4 fields but found 3", rows.get(0).reason);
+	assertEquals(4, rows.get(1).lineNumber);
+	assertEquals("malformed departure time \"7 am\"", rows.get(1).reason);
+	assertEquals(5, rows.get(2).lineNumber);
+	assertEquals("unclosed quote", rows.get(2).reason);
+	assertEquals(6, rows.get(3).lineNumber);
+	assertEquals("empty link id", rows.get(3).reason);
+    }
+
+    @Test
+    public void readsRowsAcrossChunks() throws IOException {
+	// a bit over 8MB, the size of a chunk, with rows of varying length
+	int numOfRows = 300 * 1000;
+	File csv = folder.newFile("large.csv");
+	try (BufferedWriter writer = Files.newBufferedWriter(csv.toPath(),
+		StandardCharsets.UTF_8)) {
+	    writer.write(HEADER + "\r\n");
+	    for (int i = 0; i < numOfRows; i++) {
+		writer.write("f" + i + ",\"t," + i + "\",07:00:00,16:00:"
+			+ String.format("%02d", i % 60) + "\r\n");
+	    }
+	}
+	assertEquals(true, csv.length() > 1 << 23);
+
+	for (int numOfThreads : new int[] { 1, 4 }) {
+	    LoadResult result = PopulationCSVLoader.load(csv.getPath(),
+		    numOfThreads);
+	    assertEquals(0, result.malformedRows.size());
+	    assertEquals(numOfRows, result.population.getPersons().size());
+	    for (int i = 0; i < numOfRows; i++) {
+		assertPerson(result.population, i, "f" + i, "t," + i,
+			7 * 3600, 16 * 3600 + i % 60);
+	    }
+	}
+    }
+
+    private LoadResult load(String lineEnd, String... lines)
+	    throws IOException {
+	File csv = folder.newFile();
+	Files.write(csv.toPath(), (String.join(lineEnd, lines) + lineEnd)
+		.getBytes(StandardCharsets.UTF_8));
+	return PopulationCSVLoader.load(csv.getPath(), 2);
+    }
+
+    /*
+     * the person of the index has a home-work-home plan of the links and
+     * times
+     */
+    private static void assertPerson(Population population, int index,
+	    String homeLink, String workLink, double leaveHome,
+	    double leaveWork) {
+	Person person = population.getPersons()
+		.get(Id.createPersonId(index));
+	List<Activity> activities = new ArrayList<>();
+	for (PlanElement element : person.getSelectedPlan().getPlanElements()) {
+	    if (element instanceof Activity) {
+		activities.add((Activity) element);
+	    }
+	}
+	assertEquals(3, activities.size());
+	assertEquals(homeLink, activities.get(0).getLinkId().toString());
+	assertEquals(leaveHome, activities.get(0).getEndTime(), 0);
+	assertEquals(workLink, activities.get(1).getLinkId().toString());
+	assertEquals(leaveWork, activities.get(1).getEndTime(), 0);
+	assertEquals(homeLink, activities.get(2).getLinkId().toString());
+    }
+}
@@ -0,0 +1,69 @@
+package syncity.population;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+
+import syncity.network.GridNetworkGenerator;
+import utils.Structs.PopulationArguments;
+
+public class RandomPopulationGeneratorTest {
+
+    @Test
+    public void sameSeedSamePopulationForAnyNumberOfThreads() {
+	GridNetworkGenerator grid = new GridNetworkGenerator(10, 10);
+	grid.generateGridNetwork();
+	Network network = grid.getNetwork();
+
+	assertSamePopulation(generate(network, 1), generate(network, 4));
+    }
+
+    private static Population generate(Network network, int numOfThreads) {
+	PopulationArguments params = new PopulationArguments();
+	params.popSize = 2000;
+	RandomPopulationGenerator generator = new RandomPopulationGenerator(
+		network, params);
+	generator.setSeed(11);
+	generator.populateNodes(numOfThreads);
+	return generator.getPopulation();
+    }
+
+    /*
+     * the populations have the same persons, by id, with the same selected
+     * plans
+     */
+    static void assertSamePopulation(Population expected, Population actual) {
+	assertEquals(expected.getPersons().size(),
+		actual.getPersons().size());
+	for (Person person : expected.getPersons().values()) {
+	    Person other = actual.getPersons().get(person.getId());
+	    assertNotNull("missing person " + person.getId(), other);
+	    List<PlanElement> elements = person.getSelectedPlan()
+		    .getPlanElements();
+	    List<PlanElement> otherElements = other.getSelectedPlan()
+		    .getPlanElements();
+	    assertEquals(elements.size(), otherElements.size());
+	    for (int i = 0; i < elements.size(); i++) {
+		if (elements.get(i) instanceof Activity) {
+		    Activity act = (Activity) elements.get(i);
+		    Activity otherAct = (Activity) otherElements.get(i);
+		    assertEquals(act.getType(), otherAct.getType());
+		    assertEquals(act.getLinkId(), otherAct.getLinkId());
+		    assertEquals(act.getEndTime(), otherAct.getEndTime(), 0);
+		} else {
+		    assertEquals(((Leg) elements.get(i)).getMode(),
+			    ((Leg) otherElements.get(i)).getMode());
+		}
+	    }
+	}
+    }
+}